@@ -0,0 +1,288 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+
+/**
+ * Opens and keeps the Bluetooth connection to the Moodlight in its own thread.
+ * <br>
+ * The connection is controlled by a state machine:
+ * <ul>
+ *     <li>DISCONNECTED: nothing to do, waiting for connect()</li>
+ *     <li>CONNECTING: BluetoothSocket.connect() is running</li>
+ *     <li>BACKING_OFF: an attempt failed, waiting before the next attempt</li>
+ *     <li>CONNECTED: the streams are open and handed to the listener</li>
+ * </ul>
+ * The time between two failed attempts doubles after each failure, up to a maximum.
+ * After an established connection was closed, the next attempt waits
+ * until the close time has passed, to give the Bluetooth module of the Moodlight
+ * time to notice the closing.
+ * <br>
+ * No method of this class blocks the caller, all waiting is done in the connection thread.
+ */
+public class ConnectionManager {
+
+
+    /**
+     * Callback for the connection state.
+     * <br>It is called from the connection thread, not from the UI thread!
+     */
+    public interface Listener {
+        /**
+         * Called when the state of the connection changed.
+         * @param state   new state, e.g. ConnectionManager.CONNECTING
+         * @param attempt number of the current connection attempt, starting at 1
+         * @param cause   reason of a failed attempt or null
+         */
+        void onStateChanged(int state, int attempt, Exception cause);
+
+        /**
+         * Called when the connection is established.
+         * @param inStream  stream for receiving
+         * @param outStream stream for transmitting
+         */
+        void onConnected(InputStream inStream, OutputStream outStream);
+
+        /**
+         * Called when the connection could not be established after the maximum number of tries.
+         */
+        void onConnectionFailed();
+    }
+
+
+    /** Not connected, not trying to connect */              public static final int DISCONNECTED = 0;
+    /** Trying to connect */                                 public static final int CONNECTING = 1;
+    /** Connected, the streams are open */                   public static final int CONNECTED = 2;
+    /** Waiting before the next attempt to connect */        public static final int BACKING_OFF = 3;
+
+    /** Bluetooth device of the Moodlight */                 private final BluetoothDevice device;
+    /** SerialPortService ID */                              private final UUID uuid;
+    /** Maximum tries to connect */                          private final int maxAttempts;
+    /** Wait before the second attempt in ms */              private final long initialBackoffMs;
+    /** Maximum wait between two attempts in ms */           private final long maxBackoffMs;
+    /** Wait after closing before reconnecting in ms */      private final long closeTimeMs;
+    /** Gets informed about the connection state */          private final Listener listener;
+
+    /** Actual state of the connection */                    private volatile int state;
+    /** Thread trying to connect, null if not running */     private Thread connectThread;
+    /** Bluetooth socket of the connection */                private BluetoothSocket socket;
+    /** Time the last socket was closed, in ms */            private long lastCloseTime;
+
+
+    /**
+     * Creates a new connection manager in the state DISCONNECTED.
+     * @param device           Bluetooth device of the Moodlight
+     * @param uuid             SerialPortService ID
+     * @param maxAttempts      maximum tries to connect
+     * @param initialBackoffMs wait before the second attempt in ms, doubled after each failure
+     * @param maxBackoffMs     maximum wait between two attempts in ms
+     * @param closeTimeMs      wait after closing a connection before reconnecting in ms
+     * @param listener         gets informed about the connection state
+     */
+    public ConnectionManager(BluetoothDevice device, UUID uuid, int maxAttempts,
+                             long initialBackoffMs, long maxBackoffMs, long closeTimeMs,
+                             Listener listener) {
+        this.device = device;
+        this.uuid = uuid;
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.closeTimeMs = closeTimeMs;
+        this.listener = listener;
+        this.state = DISCONNECTED;
+        this.lastCloseTime = System.currentTimeMillis() - closeTimeMs;
+    }
+
+
+    /**
+     * Returns the actual state of the connection.
+     * @return DISCONNECTED, CONNECTING, CONNECTED or BACKING_OFF
+     */
+    public int getState() {
+        return state;
+    }
+
+
+    /**
+     * Starts connecting in the connection thread. Never blocks.
+     * <br>Nothing happens if already connected or connecting.
+     */
+    public synchronized void connect() {
+        if (connectThread != null || state == CONNECTED) {
+            return;
+        }
+        connectThread = new Thread(
+                new Runnable() {
+                    public void run() {
+                        runStateMachine();
+                    }
+                }, "ConnectionManager");
+        connectThread.start();
+    }
+
+
+    /**
+     * Closes the connection or stops trying to connect. Never blocks.
+     */
+    public synchronized void disconnect() {
+        if (connectThread != null) {
+            connectThread.interrupt();
+            connectThread = null;
+        }
+        closeSocket();
+        setState(DISCONNECTED, 0, null);
+    }
+
+
+    /**
+     * Called when the connection broke down, e.g. the Moodlight was switched off.
+     * <br>Closes the socket and starts connecting again.
+     */
+    public synchronized void onLinkLost() {
+        if (state != CONNECTED) {
+            return;                             // Already reconnecting or closed on purpose
+        }
+        closeSocket();
+        setState(DISCONNECTED, 0, null);
+        connect();
+    }
+
+
+    /**
+     * Main loop of the connection thread.
+     */
+    private void runStateMachine() {
+        Thread self = Thread.currentThread();
+        long backoff = initialBackoffMs;
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            BluetoothSocket newSocket = null;
+            try {
+                long closeWait;
+                synchronized (this) {
+                    closeWait = lastCloseTime + closeTimeMs - System.currentTimeMillis();
+                }
+                if (closeWait > 0) {            // Make sure the last connection is really closed
+                    Thread.sleep(closeWait);
+                }
+                if (!setStateIfCurrent(self, CONNECTING, attempt, null)) {
+                    return;                     // disconnect() was called
+                }
+                BluetoothAdapter.getDefaultAdapter().cancelDiscovery();  // Heavy weighted
+                newSocket = device.createRfcommSocketToServiceRecord(uuid);
+                synchronized (this) {           // disconnect() can abort connect() by closing
+                    if (connectThread != self) {
+                        closeQuietly(newSocket);
+                        return;
+                    }
+                    socket = newSocket;
+                }
+                newSocket.connect();            // Try to establish the connection
+                InputStream inStream = newSocket.getInputStream();
+                OutputStream outStream = newSocket.getOutputStream();
+                synchronized (this) {
+                    if (connectThread != self) {
+                        return;                 // disconnect() was called meanwhile
+                    }
+                    connectThread = null;
+                    setState(CONNECTED, attempt, null);
+                }
+                listener.onConnected(inStream, outStream);
+                return;
+            } catch (InterruptedException e) {
+                return;                         // disconnect() was called
+            } catch (IOException e) {
+                synchronized (this) {
+                    if (socket == newSocket) {
+                        socket = null;
+                    }
+                }
+                closeQuietly(newSocket);
+                if (attempt < maxAttempts) {
+                    if (!setStateIfCurrent(self, BACKING_OFF, attempt, e)) {
+                        return;
+                    }
+                    try {                       // Wait a while before attempting to connect again
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    backoff = Math.min(backoff * 2, maxBackoffMs);
+                } else {
+                    setStateIfCurrent(self, DISCONNECTED, attempt, e);
+                }
+            }
+        }
+        synchronized (this) {
+            if (connectThread != self) {
+                return;
+            }
+            connectThread = null;
+        }
+        listener.onConnectionFailed();
+    }
+
+
+    /**
+     * Changes the state, but only if the calling thread is still the connection thread.
+     * @param self    the calling thread
+     * @param state   new state
+     * @param attempt number of the current connection attempt
+     * @param cause   reason of a failed attempt or null
+     * @return false if disconnect() was called meanwhile
+     */
+    private synchronized boolean setStateIfCurrent(Thread self, int state, int attempt,
+                                                   Exception cause) {
+        if (connectThread != self) {
+            return false;
+        }
+        setState(state, attempt, cause);
+        return true;
+    }
+
+
+    /**
+     * Changes the state and informs the listener.
+     * @param state   new state
+     * @param attempt number of the current connection attempt
+     * @param cause   reason of a failed attempt or null
+     */
+    private void setState(int state, int attempt, Exception cause) {
+        this.state = state;
+        listener.onStateChanged(state, attempt, cause);
+    }
+
+
+    /**
+     * Closes the socket of the connection, if any. Must be called while holding the lock.
+     */
+    private void closeSocket() {
+        if (socket != null) {
+            closeQuietly(socket);
+            socket = null;
+            lastCloseTime = System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Closes a socket and ignores errors, the socket is not used anymore anyway.
+     * @param socket to be closed, may be null
+     */
+    private static void closeQuietly(BluetoothSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing more to do
+        }
+    }
+}
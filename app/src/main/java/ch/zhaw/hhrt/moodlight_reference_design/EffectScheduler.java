@@ -0,0 +1,232 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import android.graphics.Color;
+
+
+/**
+ * Plays continuous lighting effects on the Moodlight, e.g. a slow rainbow.
+ * <br>
+ * Each effect is computed once into a table of RGB colors, one color per frame:
+ * <ul>
+ *     <li>BREATHING: the picked color fades in and out</li>
+ *     <li>RAINBOW: the hue walks around the color wheel, passing the adjacent hues
+ *     of the MultiColorPicker, with the saturation and value of the picked color</li>
+ *     <li>STROBE: the picked color flashes on and off</li>
+ * </ul>
+ * A dedicated timer thread plays the table: at each frame it puts the color of the frame
+ * into the TransmitQueue. Nothing is computed while playing and nothing runs in the UI thread.
+ * <br>
+ * The frames follow the clock, not the other way round. A late timer skips the frames
+ * it missed, and a frame still waiting in the queue is overwritten by the next one.
+ * Both count as dropped frames, so the effect keeps its tempo on a congested link.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - The white channel is set to the brightest of red, green and blue, like setColor() does.<br>
+ * - Without the batched color command only the changed channels are sent.<br>
+ * - No objects are created per frame.</i>
+ */
+public class EffectScheduler {
+
+    /** Picked color fading in and out */                   public static final int BREATHING = 0;
+    /** Hue walking around the color wheel */               public static final int RAINBOW = 1;
+    /** Picked color flashing on and off */                 public static final int STROBE = 2;
+
+    /** Darkest level of the breathing effect */            private static final float BREATHING_MIN = 0.05f;
+
+    /** Gets the colors of the frames */                    private final TransmitQueue transmitQueue;
+
+    /** Thread playing the effect, null if stopped */       private volatile Thread timerThread;
+    /** Colors of the frames of the effect */               private int[] table;
+    /** Time of a frame in nanoseconds */                   private long frameIntervalNanos;
+    /** Send all channels with one color frame */           private boolean batchedColor;
+    /** Number of frames put into the queue */              private volatile int playedFrames;
+    /** Number of frames skipped or overwritten */          private volatile int droppedFrames;
+
+
+    /**
+     * Creates a new scheduler. No effect is playing yet.
+     * @param transmitQueue gets the colors of the frames
+     */
+    public EffectScheduler(TransmitQueue transmitQueue) {
+        this.transmitQueue = transmitQueue;
+    }
+
+
+    /**
+     * Computes the colors of an effect, one color per frame.
+     * @param effect          BREATHING, RAINBOW or STROBE
+     * @param color           RGB color picked by the user
+     * @param periodMs        time of one cycle of the effect in ms
+     * @param frameIntervalMs time of a frame in ms
+     * @return RGB colors of one cycle
+     */
+    public static int[] createTable(int effect, int color, int periodMs, int frameIntervalMs) {
+        if (effect == STROBE) {
+            return new int[]{color, Color.BLACK};   // Fastest flashing the link allows
+        }
+        float[] hsv = new float[3];
+        Color.colorToHSV(color, hsv);
+        int[] table = new int[Math.max(2, periodMs / Math.max(1, frameIntervalMs))];
+        float hue = hsv[0];
+        float value = hsv[2];
+        if (effect == RAINBOW && (hsv[1] == 0f || hsv[2] == 0f)) {
+            hsv[1] = 1f;                        // Black, white and gray have no hue
+            hsv[2] = 1f;
+        }
+        for (int frame = 0; frame < table.length; frame++) {
+            float phase = (float) frame / table.length;
+            if (effect == RAINBOW) {
+                hsv[0] = (hue + 360f * phase) % 360f;
+            } else {
+                float level = (float) (1.0 - Math.cos(2.0 * Math.PI * phase)) / 2f;
+                hsv[2] = value * (BREATHING_MIN + (1f - BREATHING_MIN) * level);
+            }
+            table[frame] = Color.HSVToColor(hsv);
+        }
+        return table;
+    }
+
+
+    /**
+     * Starts playing an effect, a playing effect is replaced.
+     * @param table           RGB colors of one cycle, see createTable()
+     * @param frameIntervalMs time of a frame in ms
+     * @param batchedColor    true if the Moodlight supports the batched color command
+     */
+    public synchronized void start(int[] table, int frameIntervalMs, boolean batchedColor) {
+        stop();
+        this.table = table;
+        this.frameIntervalNanos = frameIntervalMs * 1000000L;
+        this.batchedColor = batchedColor;
+        playedFrames = 0;
+        droppedFrames = 0;
+        timerThread = new Thread(
+                new Runnable() {
+                    public void run() {
+                        play();
+                    }
+                }, "EffectScheduler");
+        timerThread.start();
+    }
+
+
+    /**
+     * Stops the playing effect. The Moodlight keeps the color of the last frame.
+     */
+    public synchronized void stop() {
+        if (timerThread == null) {
+            return;
+        }
+        timerThread.interrupt();
+        timerThread = null;
+        MoodlightLog.i("Effect stopped, played {} frames, dropped {}", playedFrames, droppedFrames);
+    }
+
+
+    /**
+     * Tells if an effect is playing.
+     * @return true while the timer thread runs
+     */
+    public boolean isPlaying() {
+        return timerThread != null;
+    }
+
+
+    /**
+     * Returns the number of frames put into the queue since the effect was started.
+     * @return played frames
+     */
+    public int getPlayedFrames() {
+        return playedFrames;
+    }
+
+
+    /**
+     * Returns the number of frames lost since the effect was started.
+     * <br>A frame is lost when the timer was too late for it
+     * or when the next frame overwrote it before it was sent.
+     * @return dropped frames
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+
+    /**
+     * Main loop of the timer thread.
+     * <br>Puts the color of each frame into the queue and sleeps until the next frame is due.
+     */
+    private void play() {
+        Thread self = Thread.currentThread();
+        int[] frames;
+        long interval;
+        boolean batched;
+        synchronized (this) {
+            frames = table;
+            interval = frameIntervalNanos;
+            batched = batchedColor;
+        }
+        int[] sentValues = {-1, -1, -1, -1};    // Channel values sent last, -1 = none
+        long startTime = System.nanoTime();
+        long lastFrame = -1;
+        try {
+            while (timerThread == self) {
+                long frame = (System.nanoTime() - startTime) / interval;
+                if (frame > lastFrame + 1) {
+                    droppedFrames += (int) (frame - lastFrame - 1);     // Timer was late
+                }
+                lastFrame = frame;
+                if (!putColor(frames[(int) (frame % frames.length)], batched, sentValues)) {
+                    droppedFrames++;            // Previous frame was not sent yet
+                }
+                playedFrames++;
+                long pause = startTime + (frame + 1) * interval - System.nanoTime();
+                if (pause > 0) {
+                    Thread.sleep(pause / 1000000L, (int) (pause % 1000000L));
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop() was called
+        }
+    }
+
+
+    /**
+     * Puts a color into the transmit queue.
+     * <br>Without the batched color command only the changed channels are put.
+     * @param color      RGB color, the white channel is set to the brightest of the three
+     * @param batched    true to put all channels as one color frame
+     * @param sentValues channel values put last, indexed by Command channel id
+     * @return false if a value not yet sent was overwritten
+     */
+    private boolean putColor(int color, boolean batched, int[] sentValues) {
+        int red = Color.red(color);
+        int green = Color.green(color);
+        int blue = Color.blue(color);
+        int white = Math.max(red, Math.max(green, blue));
+        if (batched) {
+            return transmitQueue.sendColor(red, green, blue, white);
+        }
+        boolean sent = putChannel(Command.RED, red, sentValues);
+        sent &= putChannel(Command.GREEN, green, sentValues);
+        sent &= putChannel(Command.BLUE, blue, sentValues);
+        sent &= putChannel(Command.WHITE, white, sentValues);
+        return sent;
+    }
+
+
+    /**
+     * Puts a channel value into the transmit queue, if it changed.
+     * @param channel    Command channel id
+     * @param value      new value
+     * @param sentValues channel values put last, indexed by Command channel id
+     * @return false if a value not yet sent was overwritten
+     */
+    private boolean putChannel(int channel, int value, int[] sentValues) {
+        if (sentValues[channel] == value) {
+            return true;
+        }
+        sentValues[channel] = value;
+        return transmitQueue.sendChannel(channel, value);
+    }
+}
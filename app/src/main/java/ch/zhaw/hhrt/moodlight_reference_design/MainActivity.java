@@ -4,12 +4,17 @@ package ch.zhaw.hhrt.moodlight_reference_design;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.content.ComponentName;
+import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
-import android.util.Log;
+import android.os.IBinder;
+import android.os.Message;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.SeekBar;
@@ -19,10 +24,7 @@ import android.widget.Toast;
 import com.chiralcode.colorpicker.ColorPicker;
 import com.chiralcode.colorpicker.ColorPickerDialog;
 
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Set;
-import java.util.UUID;
 
 
 /**
@@ -84,15 +86,19 @@ public class MainActivity extends Activity {
 
     /** SeekBar position changed by user input */           volatile boolean activeSeekBar;
 
-    /** Stream for transmitting */                          OutputStream outStream;
-    /** Stream for receiving */                             InputStream inStream;
-    /** Stop the thread that handles data reception */      volatile boolean stopDataInThread;
-    /** Buffer for received characters */                   byte[] dataInBuffer;
-    /** Actual position in the buffer */                    int dataInBufferPosition;
+    /** Service owning the connection, null if not bound */ MoodlightService moodlightService;
+    /** Binds this activity to the MoodlightService */      ServiceConnection serviceConnection;
+    /** Transmit pipeline of the bound service or null */   TransmitQueue transmitQueue;
+    /** Measures the latencies, null if not measured */     LatencyRecorder latencyRecorder;
+    /** Passes unknown commands to the UI thread */         Handler RXmessageHandler;
+    /** Publishes received values once per frame */         UiUpdateBatcher uiUpdateBatcher;
+    /** Correlates sync replies with the questions */       SyncRequests syncRequests;
+    /** Checks the timeouts of the sync questions */        Runnable syncTimeoutCheck;
+    /** Maps command labels to Command ids and back */      CommandTable commandTable;
+    /** SeekBars, indexed by Command channel id */          SeekBar[] sliders;
 
     /** Bluetooth adapter */                                BluetoothAdapter myBTadapter;
     /** Bluetooth device */                                 BluetoothDevice  myBTdevice;
-    /** Bluetooth socket */                                 BluetoothSocket  myBTsocket;
 
 
     /*********************************************************************************************
@@ -108,49 +114,163 @@ public class MainActivity extends Activity {
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        logInfo("onCreate");
+        MoodlightLog.i("onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         // Bond variables to resources
         TX_message = (EditText) findViewById(R.id.bluetoothTX_message);
         RX_message = (TextView) findViewById(R.id.bluetoothRX_message);
         TXRX_delimiter = (byte) getResources().getInteger(R.integer.TXRX_delimiter);
+        // Resolve the labels and views once, so processing received data needs no lookups
+        commandTable = MoodlightService.createCommandTable(this);
+        sliders = new SeekBar[Command.CHANNEL_COUNT];
+        sliders[Command.WHITE] = (SeekBar) findViewById(R.id.white_slider);
+        sliders[Command.RED]   = (SeekBar) findViewById(R.id.red_slider);
+        sliders[Command.GREEN] = (SeekBar) findViewById(R.id.green_slider);
+        sliders[Command.BLUE]  = (SeekBar) findViewById(R.id.blue_slider);
         // Register the listeners for the SeekBars
-        changeSeekBarListener(R.id.white_slider, getString(R.string.white_label));
-        changeSeekBarListener(R.id.red_slider,   getString(R.string.red_label)  );
-        changeSeekBarListener(R.id.green_slider, getString(R.string.green_label));
-        changeSeekBarListener(R.id.blue_slider,  getString(R.string.blue_label) );
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            changeSeekBarListener(channel);
+        }
         activeSeekBar = true;
+        // Handler needed to access outer class from inner Thread
+        RXmessageHandler = new Handler(new Handler.Callback() {
+            public boolean handleMessage(Message msg) {
+                processUnknownCommand((String) msg.obj);
+                return true;
+            }
+        });
+        // Questions of synchNow() are correlated with the replies
+        syncRequests = new SyncRequests(getResources().getInteger(R.integer.sync_timeout),
+                getResources().getInteger(R.integer.sync_attempts),
+                new SyncRequests.Listener() {
+                    public void onSyncFinished(int missingChannels, long elapsedNanos) {
+                        if (missingChannels == 0) {
+                            MoodlightLog.i("Synch finished in {} ms", elapsedNanos / 1000000L);
+                        } else {
+                            MoodlightLog.e("Synch incomplete, no reply for channel mask {}",
+                                    missingChannels);
+                        }
+                    }
+                });
+        syncTimeoutCheck = new Runnable() {
+            public void run() {
+                checkSyncTimeouts();
+            }
+        };
+        // Received values are shown at most once per display frame
+        uiUpdateBatcher = new UiUpdateBatcher(new UiUpdateBatcher.Target() {
+            public void onChannelsUpdated(int changedChannels, int[] values, int lastChannel) {
+                processReceivedData(changedChannels, values, lastChannel);
+            }
+        });
+        // The connection is kept by the MoodlightService, see onServiceConnected()
+        serviceConnection = new ServiceConnection() {
+            public void onServiceConnected(ComponentName name, IBinder binder) {
+                onServiceBound(((MoodlightService.LocalBinder) binder).getService());
+            }
+
+            public void onServiceDisconnected(ComponentName name) {
+                moodlightService = null;        // Only if the process of the service died
+                transmitQueue = null;
+                latencyRecorder = null;
+            }
+        };
         //findBTdevice();
     }
 
 
     /**
      * Called when (re)started. That is, after onCreate() or after having been hidden.
-     * <br>Opens a connection to the specified Bluetooth device
-     * and synchronizes the SeekBar sliders to reflect the the actual values from the Moodlight.
+     * <br>Starts and binds the MoodlightService, which keeps the connection
+     * to the specified Bluetooth device, see onServiceBound().
      */
     @Override
     protected void onStart() {
-        logInfo("onStart");
+        MoodlightLog.i("onStart");
         super.onStart();
-        //openBTdevice();
-        synchNow(getWindow().getCurrentFocus());
+        Intent intent = new Intent(this, MoodlightService.class);
+        startService(intent);                   // Keeps running while unbound for a while
+        bindService(intent, serviceConnection, BIND_AUTO_CREATE);
     }
 
 
     /**
      * Called when stopped. That is, hidden in the background or before onDestroy().
-     * <br>Closes the connection to the specified Bluetooth device.
+     * <br>Unbinds the MoodlightService. The connection to the specified Bluetooth device
+     * stays open, so returning to the app needs no reconnect.
+     * Only when the app is closed, the connection is closed while still bound.
      */
     @Override
     protected void onStop() {
-        logInfo("onStop");
-        //closeBTdevice();
+        MoodlightLog.i("onStop");
+        if (moodlightService != null) {
+            if (isFinishing()) {
+                closeBTdevice();                // onDestroy() has no service anymore
+            }
+            moodlightService.setListener(null);
+            moodlightService = null;
+            transmitQueue = null;
+            latencyRecorder = null;
+        }
+        unbindService(serviceConnection);
+        uiUpdateBatcher.cancel();
+        RXmessageHandler.removeCallbacks(syncTimeoutCheck);
         super.onStop();
     }
 
 
+    /**
+     * Called when the app is closed, e.g. by the back button.
+     * <br>Stops the MoodlightService, the connection was already closed by onStop().
+     * The service keeps running when the activity is only recreated, e.g. on rotation.
+     */
+    @Override
+    protected void onDestroy() {
+        MoodlightLog.i("onDestroy");
+        if (isFinishing()) {
+            stopService(new Intent(this, MoodlightService.class));
+        }
+        super.onDestroy();
+    }
+
+
+    /**
+     * Called when the MoodlightService is bound.
+     * <br>Registers for the received data and starts opening the connection.
+     * If the service is still connected, the SeekBar sliders are synchronized right away.
+     * @param service the bound MoodlightService
+     */
+    private void onServiceBound(final MoodlightService service) {
+        MoodlightLog.i("MoodlightService bound");
+        moodlightService = service;
+        transmitQueue = service.getTransmitQueue();
+        latencyRecorder = service.getLatencyRecorder();
+        service.setListener(new MoodlightService.Listener() {  // Called from service threads
+            public void onFrameReceived(int commandId, int valueCount, int[] values) {
+                MainActivity.this.onFrameReceived(service, commandId, valueCount, values);
+            }
+
+            public void onConnected() {
+                onBTdeviceConnected();
+            }
+
+            public void onConnectionFailed() {
+                runOnUiThread(new Runnable() {
+                    public void run() {
+                        toastMessage("Connection to Bluetooth device failed."
+                                + "\nPress Synch Now to try again, please.");
+                    }
+                });
+            }
+        });
+        if (service.isConnected()) {
+            synchNow(getWindow().getCurrentFocus());    // Values may have changed meanwhile
+        }
+        //openBTdevice();                       // Nothing happens if still connected
+    }
+
+
     /*********************************************************************************************
      * Graphical user interface
      *********************************************************************************************/
@@ -162,29 +282,79 @@ public class MainActivity extends Activity {
      * @param view is the active view for displaying messages
      */
     public void sendNow(View view) {
-        logInfo("Send now");
-        //sendData();
+        MoodlightLog.i("Send now");
+        sendData();
     }
 
 
     /**
      * Called by a click on the "Synch Now" button or in onStart().
      * <br>Synchronizes the SeekBar sliders to reflect the the actual values from the Moodlight.
+     * <br>All questions are queued at once and sent as separate frames, paced by the
+     * transmit queue. The replies are correlated with the questions by channel,
+     * questions without reply are asked again after a timeout.
      * @param view is the active view for displaying messages
      */
     public void synchNow(View view) {
-        logInfo("Synch Now");
-        // Ask the Moodlight which values are actually set by sending these questions
-        TX_message.setText(getString(R.string.white_label) + " ?", TextView.BufferType.NORMAL);
-        //sendData();
-        TX_message.setText(getString(R.string.red_label)   + " ?", TextView.BufferType.NORMAL);
-        //sendData();
-        TX_message.setText(getString(R.string.green_label) + " ?", TextView.BufferType.NORMAL);
-        //sendData();
-        TX_message.setText(getString(R.string.blue_label)  + " ?", TextView.BufferType.NORMAL);
-        //sendData();
-        TX_message.setText(getString(R.string.idle_label), TextView.BufferType.NORMAL);
-        //sendData();                             // Set the Moodlight back to idle mode
+        MoodlightLog.i("Synch Now");
+        if (moodlightService == null) {
+            return;                             // Synchronizes as soon as bound
+        }
+        if (moodlightService.reconnect()) {
+            return;                             // Synchronizes again as soon as connected
+        }
+        int allChannels = (1 << Command.CHANNEL_COUNT) - 1;
+        syncRequests.begin(allChannels, System.nanoTime());
+        RXmessageHandler.removeCallbacks(syncTimeoutCheck);
+        RXmessageHandler.postDelayed(syncTimeoutCheck, askSyncQuestions(allChannels));
+    }
+
+
+    /**
+     * Asks the Moodlight which values are actually set, followed by the idle command.
+     * <br>If the Moodlight supports it, one "color ?" asks for all channels.
+     * Otherwise each channel is asked separately, e.g. "red ?".
+     * Each question is a frame of its own, so the Moodlight gets the pause of "wait_time"
+     * after each of them.
+     * @param channels bit mask of the channels to ask for
+     * @return time in ms until the replies to the last question are overdue
+     */
+    private int askSyncQuestions(int channels) {
+        int frames = 1;                         // The idle command
+        if (moodlightService.isBatchedColorSupported()) {   // One question for all channels
+            sendData(commandTable.getLabel(Command.COLOR) + " ?");
+            frames++;
+        } else {
+            for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+                if ((channels & (1 << channel)) != 0) {
+                    sendData(commandTable.getLabel(channel) + " ?");
+                    frames++;
+                }
+            }
+        }
+        sendData(commandTable.getLabel(Command.IDLE));  // Set the Moodlight back to idle mode
+        return getResources().getInteger(R.integer.sync_timeout)
+                + frames * getResources().getInteger(R.integer.wait_time);
+    }
+
+
+    /**
+     * Asks again the questions of synchNow() which timed out.
+     * <br>Runs in the UI thread as long as questions are outstanding.
+     */
+    private void checkSyncTimeouts() {
+        if (transmitQueue == null) {
+            return;                             // Not bound anymore
+        }
+        int retry = syncRequests.expire(System.nanoTime());
+        int timeout = getResources().getInteger(R.integer.sync_timeout);
+        if (retry != 0) {
+            MoodlightLog.i("Synch: asking again for the channel bit mask {}", retry);
+            timeout = askSyncQuestions(retry);  // Same questions as the first time
+        }
+        if (syncRequests.isPending()) {
+            RXmessageHandler.postDelayed(syncTimeoutCheck, timeout);
+        }
     }
 
     /**
@@ -193,32 +363,93 @@ public class MainActivity extends Activity {
      * @param view is the active view for displaying messages
      */
     public void startColorPicker(View view) {
-        logInfo("Open Color Picker");
+        MoodlightLog.i("Open Color Picker");
 
-        int initialColor = getColor();
+        final int initialColor = getColor();
 
         final ColorPickerDialog colorPickerDialog = new ColorPickerDialog(this, initialColor, new ColorPickerDialog.OnColorSelectedListener() {
             @Override
             public void onColorSelected(int color) {
                 setColor(color);
-                setColor(color);
             }
         });
 
-
+        if (getResources().getBoolean(R.bool.color_preview) && transmitQueue != null) {
+            // One preview per frame the link can carry, so the transmit queue never fills up
+            int previewInterval = getResources().getInteger(R.integer.wait_time);
+            if (!moodlightService.isBatchedColorSupported()) {
+                previewInterval *= Command.CHANNEL_COUNT + 1;   // Channels and idle command
+            }
+            colorPickerDialog.setOnColorChangedListener(new ColorPicker.OnColorChangedListener() {
+                @Override
+                public void onColorChanged(int color) {
+                    setColor(color, false);
+                }
+            }, previewInterval);
+            colorPickerDialog.setOnCancelListener(new DialogInterface.OnCancelListener() {
+                @Override
+                public void onCancel(DialogInterface dialog) {
+                    setColor(initialColor, false);  // Undo the preview
+                }
+            });
+        }
 
         colorPickerDialog.show();
     }
 
 
+    /**
+     * Shows the lighting effects in the options menu.
+     * @param menu is filled from "menu_main.xml"
+     * @return true to show the menu
+     */
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+
+    /**
+     * Called when an item of the options menu is selected.
+     * <br>Starts or stops a lighting effect based on the actual color of the SeekBars.
+     * The effect is played by the MoodlightService, see EffectScheduler.
+     * @param item selected menu item
+     * @return true if the item was handled
+     */
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (moodlightService == null) {
+            return super.onOptionsItemSelected(item);   // Not bound, nothing can be sent
+        }
+        switch (item.getItemId()) {
+            case R.id.effect_breathing:
+                moodlightService.startEffect(EffectScheduler.BREATHING, getColor());
+                return true;
+            case R.id.effect_rainbow:
+                moodlightService.startEffect(EffectScheduler.RAINBOW, getColor());
+                return true;
+            case R.id.effect_strobe:
+                moodlightService.startEffect(EffectScheduler.STROBE, getColor());
+                return true;
+            case R.id.effect_stop:
+                moodlightService.stopEffect();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+
     /**
      * Change/register listeners for the SeekBars.
-     * @param id      of the SeekBar
-     * @param command string to be sent to Bluetooth device
+     * <br>While the SeekBar is dragged, only the latest value is sent at each pacing tick
+     * of the transmit queue. The intermediate values are coalesced.
+     * @param channel Command channel id of the SeekBar
      */
-    private void changeSeekBarListener(int id, final String command) {
-        SeekBar bar = (SeekBar) findViewById(id);
-        bar.setOnSeekBarChangeListener(
+    private void changeSeekBarListener(final int channel) {
+        final String command = commandTable.getLabel(channel);  // String to be sent
+        sliders[channel].setOnSeekBarChangeListener(
                 new SeekBar.OnSeekBarChangeListener() {     // Uses an inner anonymous class
                     public void onProgressChanged(SeekBar SeekBar, int progress, boolean fromUser) {
                         // When the SeekBar position is changed by the user of the smartphone
@@ -228,12 +459,13 @@ public class MainActivity extends Activity {
                         // this onProgressChanged method is also called.
                         // In this case, however, nothing has to be sent back to the Moodlight
                         // to prevent iterative loops Moodlight => smartphone => Moodlight => ...
-                        logInfo("SeekBar " + command + " changed to " + SeekBar.getProgress()
-                                + " : activeSeekBar = " + activeSeekBar);
-                        if (activeSeekBar) {
+                        if (activeSeekBar && transmitQueue != null) {
+                            markLatency(LatencyRecorder.INPUT, 1 << channel);
+                            moodlightService.stopEffect();      // The user takes over
+                            transmitQueue.setAnimation(null);
                             TX_message.setText(command + " " + SeekBar.getProgress(),
                                     TextView.BufferType.NORMAL);
-                            //sendData();
+                            transmitQueue.sendChannel(channel, SeekBar.getProgress());
                         }
                     }
 
@@ -253,138 +485,117 @@ public class MainActivity extends Activity {
 
 
     /**
-     * Processes the received data.
+     * Called by the MoodlightService in its dataInThread for each received frame.
+     * <br>Channel values are collected by the UiUpdateBatcher,
+     * which publishes them to the UI thread at most once per display frame.
+     * No objects are created per frame.
+     * @param service    the service which received the frame
+     * @param commandId  Command id of the received command
+     * @param valueCount number of received values
+     * @param values     received values
      */
-    private void processReceivedData() {
-        int id;
-        String command = "";
-        int value = 0;
-        String msg = RX_message.getText().toString();
-        String[] words = msg.split("\\s");      // Split the message at white-space characters
-        if (words.length > 0) {
-            command = words[0].toLowerCase();   // First word is interpreted as command
-        }                                       // Command is not case sensitive
-        if (words.length > 1) {                 // Is there a second word?
-            try {
-                value = Integer.parseInt(words[1].trim());  // Second word is interpreted as number
-            } catch (NumberFormatException e) {
-                value = 0;
+    private void onFrameReceived(MoodlightService service, int commandId, int valueCount,
+                                 int[] values) {
+        if (commandId >= 0 && commandId < Command.CHANNEL_COUNT) {
+            if (valueCount > 0) {               // Valid command and value were received
+                uiUpdateBatcher.postChannel(commandId, clamp(values[0]));
+                syncRequests.onReply(commandId, System.nanoTime());
+            }
+        } else if (commandId == Command.COLOR) {
+            processReceivedColor(valueCount, values);
+        } else if (commandId == Command.UNKNOWN) {
+            RXmessageHandler.obtainMessage(commandId,
+                    service.frameToString()).sendToTarget();   // Unknown commands are rare
+        }                                       // Command.IDLE: nothing to do
+    }
+
+
+    /**
+     * Processes the received data in the UI thread.
+     * <br>Called by the UiUpdateBatcher once per display frame with the latest values.
+     * @param changedChannels bit mask, bit n is set if channel n changed
+     * @param values          latest value of each channel, indexed by Command channel id
+     * @param lastChannel     channel which was received last
+     */
+    private void processReceivedData(int changedChannels, int[] values, int lastChannel) {
+        markLatency(LatencyRecorder.APPLIED, changedChannels);
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            if ((changedChannels & (1 << channel)) != 0) {
+                setProgressBar(channel, values[channel]);
             }
         }
-        /* Compare the received command with each possible value
-         * to find out which SeekBar has to be adjusted.
-         * Normally this would be programmed with: switch (command) case ...
-         * As switch can not compare to string resources I used: if ... else if ...
-         */
-        if        (command.equals(getString(R.string.white_label))){
-            id = R.id.white_slider;
-        } else if (command.equals(getString(R.string.red_label))){
-            id = R.id.red_slider;
-        } else if (command.equals(getString(R.string.green_label))){
-            id = R.id.green_slider;
-        } else if (command.equals(getString(R.string.blue_label))){
-            id = R.id.blue_slider;
-        } else if (command.equals(getString(R.string.idle_label))){
-            id = 0;                             // Nothing to do
-        } else {
-            logInfo("Unknown command: " + command);
-            id = 0;
-        }
-        if ((id != 0) && (words.length > 1)) {  // Valid command and value were received
-            activeSeekBar = false;              // Disable onProgressChanged() to prevent iteration
-            SeekBar bar = (SeekBar) findViewById(id);
-            bar.setProgress(value);
-            activeSeekBar = true;               // Enable onProgressChanged() again
+        RX_message.setText(commandTable.getLabel(lastChannel) + " " + values[lastChannel]);
+    }
+
+
+    /**
+     * Processes a received unknown command in the UI thread.
+     * @param msg text of the received frame
+     */
+    private void processUnknownCommand(String msg) {
+        MoodlightLog.i("Unknown command: {}", msg);
+        RX_message.setText(msg);
+    }
+
+
+    /**
+     * Processes a received batched color frame, e.g. "color 255 128 0 255".
+     * <br>Called in the dataInThread of the MoodlightService.
+     * @param valueCount number of received values
+     * @param values     red, green, blue and white
+     */
+    private void processReceivedColor(int valueCount, int[] values) {
+        if (valueCount >= 4) {                  // Red, green, blue and white were received
+            uiUpdateBatcher.postChannel(Command.RED,   clamp(values[0]));
+            uiUpdateBatcher.postChannel(Command.GREEN, clamp(values[1]));
+            uiUpdateBatcher.postChannel(Command.BLUE,  clamp(values[2]));
+            uiUpdateBatcher.postChannel(Command.WHITE, clamp(values[3]));
+            long now = System.nanoTime();       // Answers the questions of all channels
+            for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+                syncRequests.onReply(channel, now);
+            }
         }
     }
 
 
+    /**
+     * Limits a received value to the range of the SeekBars.
+     * @param value received value
+     * @return value between 0 and 255
+     */
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+
     /*********************************************************************************************
      * Serial communication
      *********************************************************************************************/
 
 
     /**
-     * Sends the data.
+     * Sends the data which is in the "TX_message" field.
      */
     private void sendData() {
-        String msg = TX_message.getText().toString();
-        msg += (char) TXRX_delimiter;           // Append delimiter character
-        try {
-            outStream.write(msg.getBytes());
-            logInfo("sent: " + msg);
-        } catch (Exception e) {
-            logError("Data could not be sent: " + e);
-            finish();
-        }
-        synchronized (this) {
-            try {               // Wait a bit to give the Moodlight time to process the data
-                wait(getResources().getInteger(R.integer.wait_time));
-            } catch (Exception e) {
-                logError("Error while waiting: " + e);
-            }
-        }
+        sendData(TX_message.getText().toString());
     }
 
 
     /**
-     * Starts a new Thread which listens for incoming data and handles it.
+     * Sends a command.
+     * <br>The command is only put into the transmit queue, this method never blocks.
+     * The writer thread of the queue appends the delimiter character
+     * and gives the Moodlight time to process the data.
+     * @param msg command to be sent
      */
-    private void listenForData() {
-        final Handler RXmessageHandler = new Handler();
-        // Handler needed to access outer class from inner Thread
-        stopDataInThread = false;               // Stop inner Thread flag
-        dataInBuffer = new byte[256];           // Temporary buffer
-        dataInBufferPosition = 0;               // Position of last byte in the buffer
-        Thread dataInThread = new Thread(       // Thread listens for incoming data
-                new Runnable() {                // Uses inner classes
-                    public void run() {
-                        while (!Thread.currentThread().isInterrupted() && !stopDataInThread) {
-                            try {
-                                int bytesAvailable = inStream.available();
-                                if (bytesAvailable > 0) {
-                                    byte[] packetBytes = new byte[bytesAvailable];
-                                    // Temporary variable for InputStream
-                                    bytesAvailable = inStream.read(packetBytes);
-                                    for (int i = 0; i < bytesAvailable; i++) {
-                                        if (packetBytes[i] == TXRX_delimiter) {
-                                                    // Delimiter character was received
-                                            final String data = new String(dataInBuffer, 0,
-                                                    dataInBufferPosition);
-                                            // Make a String from received bytes
-                                            dataInBufferPosition = 0;   // Start anew with next byte
-                                            RXmessageHandler.post(
-                                                    new Runnable() {    // Process received String
-                                                        public void run() {
-                                                            logInfo("received: " + data);
-                                                            RX_message.setText(data);
-                                                            processReceivedData();
-                                                        }
-                                                    }
-                                            );
-                                        } else {    // Normal character was received
-                                            dataInBuffer[dataInBufferPosition++] = packetBytes[i];
-                                            // Store the received byte in the temporary buffer
-                                        }
-                                    }
-                                }
-                            } catch (Exception e) {
-                                logError("Error in dataInThread: " + e);
-                                stopDataInThread = true;
-                            }
-                            synchronized (this) {
-                                try {           // Wait a bit to use less CPU time
-                                    wait(getResources().getInteger(R.integer.wait_time));
-                                } catch (Exception e) {
-                                    logError("Error while waiting: " + e);
-                                }
-                            }
-
-                        }
-                    }
-                }
-        );
-        dataInThread.start();
+    private void sendData(String msg) {
+        if (transmitQueue == null) {
+            MoodlightLog.e("MoodlightService not bound, not sent: {}", msg);
+            return;
+        }
+        if (!transmitQueue.send(msg)) {
+            MoodlightLog.e("Transmit queue full, oldest command dropped");
+        }
     }
 
 
@@ -400,9 +611,10 @@ public class MainActivity extends Activity {
         Boolean paired = false;
         myBTadapter = BluetoothAdapter.getDefaultAdapter();
         if (myBTadapter == null) {
-            logError("No Bluetooth adapter available. Running this app not possible.");
+            MoodlightLog.e("No Bluetooth adapter available. Running this app not possible.");
             toastMessage("No Bluetooth adapter available.\nRunning this app not possible.");
             finish();
+            return;
         }
         if (!myBTadapter.isEnabled()) {         // Turn on Bluetooth adapter
             Intent enableBluetooth = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
@@ -419,9 +631,9 @@ public class MainActivity extends Activity {
             }
         }
         if (paired) {
-            logInfo("Bluetooth device " + deviceName + " is paired.");
+            MoodlightLog.i("Bluetooth device {} is paired.", deviceName);
         } else {
-            logError("Bluetooth device " + deviceName + " is NOT paired.");
+            MoodlightLog.e("Bluetooth device {} is NOT paired.", deviceName);
             toastMessage("Bluetooth device " + deviceName
                     + " is NOT paired yet.\nCheck available Bluetooth devices in the smartphone");
             finish();                           // Stop the app
@@ -430,75 +642,38 @@ public class MainActivity extends Activity {
 
 
     /**
-     * Opens a connection to the specified Bluetooth device.
+     * Starts opening a connection to the specified Bluetooth device.
+     * <br>The MoodlightService connects in its own thread, so this method never blocks.
+     * Failed attempts are repeated with exponentially growing pauses.
      */
     private void openBTdevice() {
-        Boolean success = false;
-        int tryCount = 0;
-        myBTadapter.cancelDiscovery();      // Cancel discovery because it is heavy weighted
-        while (!success && tryCount < getResources().getInteger(R.integer.connect_retry)) {
-            tryCount++;
-            try {
-                UUID uuid = UUID.fromString(getString(R.string.UUID));  // SerialPortService ID
-                myBTsocket = myBTdevice.createRfcommSocketToServiceRecord(uuid);
-                myBTsocket.connect();           // Try to establishing the connection
-                success = true;
-                logInfo("Bluetooth device successfully opened at try number " + tryCount);
-            } catch (Exception e) {
-                logError("Attempt " + tryCount + " to open Bluetooth device failed: " + e);
-            }
-            if (!success) {
-                try {
-                    myBTsocket.close();         // Make sure that the connection is closed
-                } catch (Exception e) {
-                    logError("Bluetooth device could not be closed: " + e);
-                    finish();
-                }
-                synchronized (this) {
-                    try {                       // Wait a while before attempting to connect again
-                        wait(getResources().getInteger(R.integer.close_time));
-                    } catch (Exception e) {
-                        logError("Error while waiting: " + e);
-                    }
-                }
-            }
-        }
-        if (!success) {
-            logError("Connection to Bluetooth device failed");
-            toastMessage("Connection to Bluetooth device failed.\nStart the app again, please.");
-            finish();                           // Stop the app immediately
-        }
-        try {
-            outStream = myBTsocket.getOutputStream();
-            inStream = myBTsocket.getInputStream();
-            listenForData();                    // Start a new Thread which handles incomming data
-        } catch (Exception e) {
-            logError("getOutputStream or getInputStream failed: " + e);
-            finish();                           // Stop the app
+        if (myBTdevice == null || moodlightService == null) {
+            return;                             // Not paired or not bound yet
         }
+        moodlightService.connect(myBTdevice);
+    }
+
+
+    /**
+     * Called by the MoodlightService in its connection thread when the connection is open.
+     * <br>Synchronizes the SeekBar sliders.
+     */
+    private void onBTdeviceConnected() {
+        runOnUiThread(new Runnable() {
+            public void run() {
+                synchNow(getWindow().getCurrentFocus());
+            }
+        });
     }
 
 
     /**
      * Closes the connection to the specified Bluetooth device.
+     * <br>The MoodlightService closes the socket in the background, so this method never blocks.
      */
     private void closeBTdevice() {
-        try {
-            stopDataInThread = true;
-            outStream.close();
-            inStream.close();
-            myBTsocket.close();
-            logInfo("BT device closed");
-        } catch (Exception e) {
-            logError("BT device could not be closed: " + e);
-            finish();
-        }
-        synchronized (this) {
-            try {                               // Wait, make sure the connection is really closed
-                wait(getResources().getInteger(R.integer.close_time));
-            } catch (Exception e) {
-                logError("Error while waiting: " + e);
-            }
+        if (moodlightService != null) {
+            moodlightService.disconnect();
         }
     }
 
@@ -508,19 +683,14 @@ public class MainActivity extends Activity {
      *********************************************************************************************/
 
     /**
-     * Show error in the log output.
-     * @param message is written to the log output which is useful for debugging
+     * Marks channels in the latency recorder, if latencies are measured.
+     * @param stage    e.g. LatencyRecorder.INPUT
+     * @param channels bit mask of the channels
      */
-    private void logError(String message) {
-        Log.e(getString(R.string.app_name), message);    // for debugging
-    }
-
-    /**
-     * Show information in the log output.
-     * @param message is written to the log output which is useful for debugging
-     */
-    private void logInfo(String message) {
-        Log.i(getString(R.string.app_name), message);    // for debugging
+    private void markLatency(int stage, int channels) {
+        if (latencyRecorder != null) {
+            latencyRecorder.mark(stage, channels, System.nanoTime());
+        }
     }
 
     /**
@@ -534,58 +704,93 @@ public class MainActivity extends Activity {
     private int getColor()
     {
         int color = 0;
-        int red = getProgressBarValue(R.id.red_slider);
-        int green = getProgressBarValue(R.id.green_slider);
-        int blue = getProgressBarValue(R.id.blue_slider);
+        int red = getProgressBarValue(Command.RED);
+        int green = getProgressBarValue(Command.GREEN);
+        int blue = getProgressBarValue(Command.BLUE);
 
         color = ((red & 0xFF) << 16) + ((green & 0xFF) << 8) + (blue & 0xFF);
 
         return color;
     }
 
+    /**
+     * Sets the SeekBars to a color and sends it to the Moodlight.
+     * <br>If the Moodlight supports it, all channels are sent with one batched color frame.
+     * Otherwise each channel is sent separately followed by the idle command.
+     * <br>If a transition time is set in "settings.xml", the Moodlight fades to the new color,
+     * see TransitionEngine.
+     * @param color RGB color, the white channel is set to the brightest of the three
+     */
     private void setColor(int color) {
+        setColor(color, true);
+    }
+
+    /**
+     * Sets the SeekBars to a color and sends it to the Moodlight.
+     * @param color RGB color, the white channel is set to the brightest of the three
+     * @param fade false to change the color at once, e.g. for the live preview of the ColorPicker
+     */
+    private void setColor(int color, boolean fade) {
         int red, green, blue, white;
+        int previousColor = getColor();
 
         red = (color >> 16) & 0xFF;
-        setProgressBar(R.id.red_slider, red);
-        colorPickerSend(R.string.red_label, red);
+        setProgressBar(Command.RED, red);
 
         green = (color >> 8) & 0xFF;
-        setProgressBar(R.id.green_slider, green);
-        colorPickerSend(R.string.green_label, green);
+        setProgressBar(Command.GREEN, green);
 
         blue = color & 0xFF;
-        setProgressBar(R.id.blue_slider, blue);
-        colorPickerSend(R.string.blue_label, blue);
+        setProgressBar(Command.BLUE, blue);
 
         white = Math.max(red, Math.max(green, blue));
-        setProgressBar(R.id.white_slider, white);
-        colorPickerSend(R.string.white_label, white);
+        setProgressBar(Command.WHITE, white);
+
+        if (transmitQueue == null) {
+            return;                             // Not bound, nothing can be sent
+        }
+        markLatency(LatencyRecorder.INPUT, (1 << Command.CHANNEL_COUNT) - 1);
+        moodlightService.stopEffect();
+        int transitionTime = getResources().getInteger(R.integer.transition_time);
+        if (fade && transitionTime > 0) {
+            boolean batched = moodlightService.isBatchedColorSupported();
+            transmitQueue.setAnimation(new TransitionEngine(previousColor, color, transitionTime,
+                    getResources().getBoolean(R.bool.transition_hsv)
+                            ? TransitionEngine.HSV : TransitionEngine.RGB,
+                    batched, batched ? null : getString(R.string.idle_label)));
+            return;                             // The keyframes are sent by the engine
+        }
+        transmitQueue.setAnimation(null);       // A running transition would overwrite the color
+        if (moodlightService.isBatchedColorSupported()) {
+            transmitQueue.sendColor(red, green, blue, white);
+            return;                             // Batched frame leaves the Moodlight idle
+        }
+        colorPickerSend(Command.RED, red);
+        colorPickerSend(Command.GREEN, green);
+        colorPickerSend(Command.BLUE, blue);
+        colorPickerSend(Command.WHITE, white);
 
         TX_message.setText(getString(R.string.idle_label), TextView.BufferType.NORMAL);
-        //sendData();
+        sendData();
     }
 
-    private int getProgressBarValue(int id)
+    private int getProgressBarValue(int channel)
     {
         int value = 0;
-        SeekBar bar = (SeekBar) findViewById(id);
-        value = bar.getProgress();
+        value = sliders[channel].getProgress();
 
         return value;
     }
 
-    private void setProgressBar(int id, int value)
+    private void setProgressBar(int channel, int value)
     {
-        activeSeekBar = false;
-        SeekBar bar = (SeekBar) findViewById(id);
-        bar.setProgress(value);
-        activeSeekBar = true;
+        activeSeekBar = false;              // Disable onProgressChanged() to prevent iteration
+        sliders[channel].setProgress(value);
+        activeSeekBar = true;               // Enable onProgressChanged() again
     }
 
-    private void colorPickerSend(int id, int value)
+    private void colorPickerSend(int channel, int value)
     {
-        TX_message.setText(getString(id) + " " + Integer.toString(value), TextView.BufferType.NORMAL);
-        //sendData();
+        transmitQueue.sendChannel(channel, value);
     }
 }
@@ -0,0 +1,201 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import android.util.Log;
+
+
+/**
+ * Leveled log output which costs nothing when logging is off.
+ * <br>
+ * In release builds only errors are written, in debug builds all levels,
+ * see BuildConfig.DEBUG. Every method checks the level first,
+ * so a message below the level creates no Strings at all.
+ * <br>
+ * The arguments are not concatenated by the caller but passed separately
+ * and put into the "{}" placeholders of the message only if it is written, e.g.
+ * <pre>
+ *     MoodlightLog.i("Synch finished in {} ms", elapsedMs);
+ * </pre>
+ * The overloads take numbers as long, so no boxing happens either.
+ * <br> <br>
+ * <i>Notes:<br>
+ * Do not concatenate Strings in the arguments, this would cost even when logging is off.</i>
+ */
+public final class MoodlightLog {
+
+    /** Lowest level written to the log output */           public static final int LEVEL =
+            BuildConfig.DEBUG ? Log.DEBUG : Log.ERROR;
+    /** Tag of the log output, see "app_name" */            private static final String TAG = "Moodlight";
+    /** Placeholder for an argument in the message */       private static final String PLACEHOLDER = "{}";
+
+
+    /**
+     * Only static methods, no instances.
+     */
+    private MoodlightLog() {
+    }
+
+
+    /**
+     * Tells if messages of a level are written, e.g. to skip building a large message.
+     * @param level e.g. Log.DEBUG
+     * @return true if messages of this level are written
+     */
+    public static boolean isLoggable(int level) {
+        return level >= LEVEL;
+    }
+
+
+    /**
+     * Writes debug information, only in debug builds.
+     * @param message is written to the log output
+     */
+    public static void d(String message) {
+        if (Log.DEBUG >= LEVEL) {
+            Log.d(TAG, message);
+        }
+    }
+
+    /**
+     * Writes debug information with one number, only in debug builds.
+     * @param message with one placeholder "{}"
+     * @param a       put into the placeholder
+     */
+    public static void d(String message, long a) {
+        if (Log.DEBUG >= LEVEL) {
+            Log.d(TAG, format(message, 1, null, a, 0));
+        }
+    }
+
+    /**
+     * Writes debug information with one object, only in debug builds.
+     * @param message with one placeholder "{}"
+     * @param a       put into the placeholder with toString()
+     */
+    public static void d(String message, Object a) {
+        if (Log.DEBUG >= LEVEL) {
+            Log.d(TAG, format(message, 0, a, 0, 0));
+        }
+    }
+
+
+    /**
+     * Writes information, only in debug builds.
+     * @param message is written to the log output
+     */
+    public static void i(String message) {
+        if (Log.INFO >= LEVEL) {
+            Log.i(TAG, message);
+        }
+    }
+
+    /**
+     * Writes information with one number, only in debug builds.
+     * @param message with one placeholder "{}"
+     * @param a       put into the placeholder
+     */
+    public static void i(String message, long a) {
+        if (Log.INFO >= LEVEL) {
+            Log.i(TAG, format(message, 1, null, a, 0));
+        }
+    }
+
+    /**
+     * Writes information with two numbers, only in debug builds.
+     * @param message with two placeholders "{}"
+     * @param a       put into the first placeholder
+     * @param b       put into the second placeholder
+     */
+    public static void i(String message, long a, long b) {
+        if (Log.INFO >= LEVEL) {
+            Log.i(TAG, format(message, 2, null, a, b));
+        }
+    }
+
+    /**
+     * Writes information with one object, only in debug builds.
+     * @param message with one placeholder "{}"
+     * @param a       put into the placeholder with toString()
+     */
+    public static void i(String message, Object a) {
+        if (Log.INFO >= LEVEL) {
+            Log.i(TAG, format(message, 0, a, 0, 0));
+        }
+    }
+
+
+    /**
+     * Writes an error, also in release builds.
+     * @param message is written to the log output
+     */
+    public static void e(String message) {
+        if (Log.ERROR >= LEVEL) {
+            Log.e(TAG, message);
+        }
+    }
+
+    /**
+     * Writes an error with one number, also in release builds.
+     * @param message with one placeholder "{}"
+     * @param a       put into the placeholder
+     */
+    public static void e(String message, long a) {
+        if (Log.ERROR >= LEVEL) {
+            Log.e(TAG, format(message, 1, null, a, 0));
+        }
+    }
+
+    /**
+     * Writes an error with two numbers, also in release builds.
+     * @param message with two placeholders "{}"
+     * @param a       put into the first placeholder
+     * @param b       put into the second placeholder
+     */
+    public static void e(String message, long a, long b) {
+        if (Log.ERROR >= LEVEL) {
+            Log.e(TAG, format(message, 2, null, a, b));
+        }
+    }
+
+    /**
+     * Writes an error with one object, e.g. an exception, also in release builds.
+     * @param message with one placeholder "{}"
+     * @param a       put into the placeholder with toString()
+     */
+    public static void e(String message, Object a) {
+        if (Log.ERROR >= LEVEL) {
+            Log.e(TAG, format(message, 0, a, 0, 0));
+        }
+    }
+
+
+    /**
+     * Puts the arguments into the placeholders of a message.
+     * <br>Only called when the message is really written.
+     * @param message     with placeholders "{}"
+     * @param numberCount number of numbers, 0 if the object is used
+     * @param object      put into the first placeholder if numberCount is 0
+     * @param a           put into the first placeholder if numberCount is 1 or 2
+     * @param b           put into the second placeholder if numberCount is 2
+     * @return the message with the arguments
+     */
+    private static String format(String message, int numberCount, Object object, long a, long b) {
+        StringBuilder text = new StringBuilder(message.length() + 24);
+        int start = 0;
+        int argCount = numberCount == 0 ? 1 : numberCount;
+        for (int arg = 0; arg < argCount; arg++) {
+            int placeholder = message.indexOf(PLACEHOLDER, start);
+            if (placeholder < 0) {
+                break;                          // Fewer placeholders than arguments
+            }
+            text.append(message, start, placeholder);
+            if (numberCount == 0) {
+                text.append(object);
+            } else {
+                text.append(arg == 0 ? a : b);
+            }
+            start = placeholder + PLACEHOLDER.length();
+        }
+        text.append(message, start, message.length());
+        return text.toString();
+    }
+}
@@ -0,0 +1,520 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.UUID;
+
+
+/**
+ * Long-lived service owning the Bluetooth connection to the Moodlight.
+ * <br>
+ * The service holds the MoodlightTransport, e.g. the Bluetooth RFCOMM link,
+ * the TransmitQueue and the FrameDecoder for the received data.
+ * MainActivity binds to the service while it is visible.
+ * Thus a screen rotation or a switch to another app does not close the connection,
+ * the connection is only opened again when the link to the Moodlight is really lost.
+ * <br>
+ * When no activity is bound anymore, the service keeps the connection for a while
+ * (see "service_linger_time" in "settings.xml") and then stops itself.
+ * <br> <br>
+ * <i>Notes:<br>
+ * The service runs in the process of the app, so the activity gets direct access
+ * to it through the LocalBinder.</i>
+ */
+public class MoodlightService extends Service {
+
+
+    /**
+     * Callback for the data and events of the connection.
+     * <br>It is called from the threads of the service, not from the UI thread!
+     */
+    public interface Listener {
+        /**
+         * Called for each received frame, see FrameDecoder.Listener.
+         * @param commandId  Command id of the received command
+         * @param valueCount number of received values
+         * @param values     received values, only valid during this call
+         */
+        void onFrameReceived(int commandId, int valueCount, int[] values);
+
+        /**
+         * Called when the connection to the Moodlight is open.
+         */
+        void onConnected();
+
+        /**
+         * Called when the connection could not be established after the maximum number of tries.
+         */
+        void onConnectionFailed();
+    }
+
+
+    /**
+     * Gives the bound activity direct access to the service.
+     */
+    public class LocalBinder extends Binder {
+        /**
+         * Returns the service.
+         * @return the running service
+         */
+        public MoodlightService getService() {
+            return MoodlightService.this;
+        }
+    }
+
+
+    /** Binder handed to the bound activity */              private final IBinder binder = new LocalBinder();
+    /** Gets the data and events, null if not bound */      private volatile Listener listener;
+    /** Delimiter character at the end of a message */      private byte TXRX_delimiter;
+    /** Maps command labels to Command ids and back */      private CommandTable commandTable;
+
+    /** Asynchronous transmit pipeline */                   private TransmitQueue transmitQueue;
+    /** Link to the Moodlight, null if never connected */   private volatile MoodlightTransport transport;
+    /** Bluetooth device of the connection */               private BluetoothDevice device;
+    /** Decodes the received frames without garbage */      private FrameDecoder frameDecoder;
+    /** Moodlight understands the batched color command */  private volatile boolean batchedColorSupported;
+    /** Measures the latencies, null if not measured */     private LatencyRecorder latencyRecorder;
+    /** Plays the lighting effects */                       private EffectScheduler effectScheduler;
+
+    /** Stops the service when not bound for a while */     private Handler lingerHandler;
+    /** Stops the service */                                private Runnable lingerTimeout;
+
+
+    /**
+     * Creates the command table from the labels in the resources.
+     * @param context to access the resources
+     * @return table with the labels, indexed by Command id
+     */
+    public static CommandTable createCommandTable(Context context) {
+        String[] commandLabels = new String[Command.BINARY + 1];    // Indexed by Command id
+        commandLabels[Command.WHITE] = context.getString(R.string.white_label);
+        commandLabels[Command.RED]   = context.getString(R.string.red_label);
+        commandLabels[Command.GREEN] = context.getString(R.string.green_label);
+        commandLabels[Command.BLUE]  = context.getString(R.string.blue_label);
+        commandLabels[Command.IDLE]  = context.getString(R.string.idle_label);
+        commandLabels[Command.COLOR] = context.getString(R.string.color_label);
+        commandLabels[Command.BINARY] = context.getString(R.string.binary_label);
+        return new CommandTable(commandLabels);
+    }
+
+
+    /**
+     * Called when the service is created.
+     * <br>Starts the transmit queue, the connection is opened later by connect().
+     */
+    @Override
+    public void onCreate() {
+        MoodlightLog.i("Service onCreate");
+        super.onCreate();
+        TXRX_delimiter = (byte) getResources().getInteger(R.integer.TXRX_delimiter);
+        commandTable = createCommandTable(this);
+        // The writer thread of the transmit queue keeps the pause between subsequent commands
+        String[] channelLabels = new String[Command.CHANNEL_COUNT];
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            channelLabels[channel] = commandTable.getLabel(channel);
+        }
+        transmitQueue = new TransmitQueue(getResources().getInteger(R.integer.transmit_queue_size),
+                getResources().getInteger(R.integer.wait_time), TXRX_delimiter, channelLabels,
+                commandTable.getLabel(Command.COLOR));
+        transmitQueue.setListener(new TransmitQueue.Listener() {
+            public void onTransmitError(Exception e) {
+                MoodlightLog.e("Data could not be sent: {}", e);   // Called from the writer thread
+                MoodlightTransport link = transport;
+                if (link != null) {
+                    link.reopen();
+                }
+            }
+        });
+        if (getResources().getBoolean(R.bool.latency_recording)) {
+            latencyRecorder = new LatencyRecorder(Command.CHANNEL_COUNT,
+                    getResources().getInteger(R.integer.latency_max));
+            transmitQueue.setLatencyRecorder(latencyRecorder);
+        }
+        transmitQueue.start();
+        effectScheduler = new EffectScheduler(transmitQueue);
+        // The received bytes are decoded without creating any objects
+        frameDecoder = new FrameDecoder(TXRX_delimiter, commandTable,
+                getResources().getInteger(R.integer.max_frame_size),
+                new FrameDecoder.Listener() {
+                    public void onFrame(int commandId, int valueCount, int[] values) {
+                        onFrameReceived(commandId, valueCount, values);
+                    }
+
+                    public void onFrameOverflow(int overflowCount) {
+                        MoodlightLog.e("Received frame too long, dropped {} frames so far",
+                                overflowCount);
+                    }
+
+                    public void onChecksumError(int errorCount) {
+                        MoodlightLog.e("Received frame with wrong checksum, dropped {} so far",
+                                errorCount);
+                    }
+                });
+        lingerHandler = new Handler();
+        lingerTimeout = new Runnable() {
+            public void run() {
+                MoodlightLog.i("Not bound anymore, stopping the service");
+                stopSelf();
+            }
+        };
+    }
+
+
+    /**
+     * Called when the service is started with startService().
+     * <br>The service keeps running after the activity unbinds, until the linger time is over.
+     * @return START_NOT_STICKY, the service is not restarted after being killed
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+
+    /**
+     * Called when the activity binds to the service.
+     * @param intent used to bind
+     * @return the LocalBinder
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        lingerHandler.removeCallbacks(lingerTimeout);
+        return binder;
+    }
+
+
+    /**
+     * Called when the activity binds again after all activities had unbound.
+     * @param intent used to bind
+     */
+    @Override
+    public void onRebind(Intent intent) {
+        lingerHandler.removeCallbacks(lingerTimeout);
+    }
+
+
+    /**
+     * Called when no activity is bound anymore.
+     * <br>Keeps the connection for the linger time, then stops the service.
+     * @param intent used to bind
+     * @return true to get onRebind() called
+     */
+    @Override
+    public boolean onUnbind(Intent intent) {
+        listener = null;
+        reportLatencies();
+        lingerHandler.postDelayed(lingerTimeout,
+                getResources().getInteger(R.integer.service_linger_time));
+        return true;
+    }
+
+
+    /**
+     * Called when the service is stopped.
+     * <br>Closes the connection to the Moodlight.
+     */
+    @Override
+    public void onDestroy() {
+        MoodlightLog.i("Service onDestroy");
+        lingerHandler.removeCallbacks(lingerTimeout);
+        effectScheduler.stop();
+        disconnect();
+        transmitQueue.stop();
+        super.onDestroy();
+    }
+
+
+    /*********************************************************************************************
+     * Interface for the bound activity
+     *********************************************************************************************/
+
+
+    /**
+     * Registers the callback for the data and events of the connection.
+     * @param listener gets the data and events, null to unregister
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Returns the transmit queue, commands put into it are sent as soon as connected.
+     * @return the transmit queue of the service
+     */
+    public TransmitQueue getTransmitQueue() {
+        return transmitQueue;
+    }
+
+
+    /**
+     * Returns the recorder which measures the latency from user input to the reply.
+     * @return the recorder or null if latencies are not measured
+     */
+    public LatencyRecorder getLatencyRecorder() {
+        return latencyRecorder;
+    }
+
+
+    /**
+     * Tells if the connection to the Moodlight is open.
+     * @return true if connected
+     */
+    public boolean isConnected() {
+        return transport != null && transport.getState() == MoodlightTransport.OPEN;
+    }
+
+
+    /**
+     * Starts connecting again to the last device, if the connection is closed
+     * and no attempt to connect is running. Never blocks.
+     * @return true if a new attempt to connect was started
+     */
+    public boolean reconnect() {
+        if (transport == null || transport.getState() != MoodlightTransport.CLOSED) {
+            return false;
+        }
+        transport.open();
+        return true;
+    }
+
+
+    /**
+     * Tells if the Moodlight answered the question for the batched color command.
+     * @return true if the batched color command can be used
+     */
+    public boolean isBatchedColorSupported() {
+        return batchedColorSupported;
+    }
+
+
+    /**
+     * Starts playing a lighting effect, see EffectScheduler.
+     * <br>The effect keeps playing while the service runs, also when the app is hidden.
+     * A running color transition is stopped.
+     * @param effect e.g. EffectScheduler.RAINBOW
+     * @param color  RGB color the effect is based on
+     */
+    public void startEffect(int effect, int color) {
+        // One frame per link frame, or one per channel without the batched color command
+        int frameInterval = getResources().getInteger(R.integer.wait_time);
+        if (!batchedColorSupported) {
+            frameInterval *= Command.CHANNEL_COUNT;
+        }
+        int[] table = EffectScheduler.createTable(effect, color,
+                getResources().getInteger(R.integer.effect_period), frameInterval);
+        transmitQueue.setAnimation(null);
+        effectScheduler.start(table, frameInterval, batchedColorSupported);
+    }
+
+
+    /**
+     * Stops the playing lighting effect, if any.
+     * <br>The Moodlight keeps the color of the last frame.
+     */
+    public void stopEffect() {
+        effectScheduler.stop();
+    }
+
+
+    /**
+     * Returns the text of the frame being handed to the listener.
+     * <br>Only valid while Listener.onFrameReceived() is running, see FrameDecoder.
+     * @return the frame without delimiter
+     */
+    public String frameToString() {
+        return frameDecoder.frameToString();
+    }
+
+
+    /**
+     * Starts opening a connection to a Bluetooth device. Never blocks.
+     * <br>Nothing happens if the service is already connected or connecting to this device.
+     * @param btDevice Bluetooth device of the Moodlight
+     */
+    public void connect(BluetoothDevice btDevice) {
+        if (transport != null && btDevice.equals(device)) {
+            transport.open();                   // Nothing happens if already open
+            return;
+        }
+        device = btDevice;
+        UUID uuid = UUID.fromString(getString(R.string.UUID));  // SerialPortService ID
+        connect(new RfcommTransport(btDevice, uuid,
+                getResources().getInteger(R.integer.connect_retry),
+                getResources().getInteger(R.integer.connect_backoff),
+                getResources().getInteger(R.integer.connect_backoff_max),
+                getResources().getInteger(R.integer.close_time)));
+    }
+
+
+    /**
+     * Starts opening a connection over any link, e.g. to a SimulatedMoodlight. Never blocks.
+     * <br>The link used before is closed.
+     * @param newTransport link to the Moodlight, not opened yet
+     */
+    public void connect(MoodlightTransport newTransport) {
+        disconnect();
+        transport = newTransport;
+        transport.setListener(new MoodlightTransport.Listener() {  // Called from link threads
+            public void onStateChanged(int state, int attempt, Exception cause) {
+                if (state != MoodlightTransport.OPEN) {
+                    transmitQueue.setTransport(null);   // Keep the frames until reconnected
+                }
+                if (cause != null) {
+                    MoodlightLog.e("Bluetooth connection failed: {}", cause);
+                }
+                MoodlightLog.i("Bluetooth connection state {} at try number {}", state, attempt);
+            }
+
+            public void onOpened() {
+                onTransportOpened();
+            }
+
+            public void onOpenFailed() {
+                MoodlightLog.e("Connection to Bluetooth device failed");
+                Listener target = listener;
+                if (target != null) {
+                    target.onConnectionFailed();
+                }
+            }
+
+            public void onReceived(byte[] buffer, int offset, int length) {
+                frameDecoder.decode(buffer, offset, length);
+            }
+        });
+        transport.open();
+    }
+
+
+    /**
+     * Closes the connection to the Moodlight.
+     * <br>The transport closes the link in the background, so this method never blocks.
+     */
+    public void disconnect() {
+        transmitQueue.setTransport(null);
+        if (transport != null) {
+            transport.close();
+        }
+        MoodlightLog.i("BT device closed");
+    }
+
+
+    /*********************************************************************************************
+     * Serial communication
+     *********************************************************************************************/
+
+
+    /**
+     * Called by the transport in its thread when the link is open.
+     * <br>Starts sending and receiving and informs the listener.
+     */
+    private void onTransportOpened() {
+        MoodlightLog.i("Bluetooth device successfully opened");
+        frameDecoder.reset();                   // Forget bytes of a previous connection
+        transmitQueue.setTransport(transport);
+        // Find out if the Moodlight supports the batched color command.
+        // Only a Moodlight knowing the command answers, see onFrameReceived().
+        batchedColorSupported = false;
+        transmitQueue.send(commandTable.getLabel(Command.COLOR) + " ?");
+        // Binary frames are only used if the Moodlight answers with "binary 1"
+        transmitQueue.setBinary(false);
+        frameDecoder.setBinary(false);
+        if (getResources().getBoolean(R.bool.binary_protocol)) {
+            transmitQueue.send(commandTable.getLabel(Command.BINARY) + " ?");
+        }
+        Listener target = listener;
+        if (target != null) {
+            target.onConnected();
+        }
+    }
+
+
+    /**
+     * Called by the FrameDecoder in the receiving thread of the transport for each frame.
+     * <br>Notes the support of the batched color command and passes the frame on.
+     * @param commandId  Command id of the received command
+     * @param valueCount number of received values
+     * @param values     received values
+     */
+    private void onFrameReceived(int commandId, int valueCount, int[] values) {
+        if (commandId == Command.COLOR && !batchedColorSupported) {
+            batchedColorSupported = true;
+            MoodlightLog.i("Moodlight supports the batched color command");
+        }
+        if (commandId == Command.BINARY && valueCount > 0) {
+            transmitQueue.setBinary(values[0] == 1);
+            frameDecoder.setBinary(values[0] == 1);
+            MoodlightLog.i("Moodlight agreed to binary frames: {}", values[0]);
+        }
+        if (latencyRecorder != null) {
+            if (commandId >= 0 && commandId < Command.CHANNEL_COUNT && valueCount > 0) {
+                latencyRecorder.mark(LatencyRecorder.DECODED, 1 << commandId, System.nanoTime());
+            } else if (commandId == Command.COLOR && valueCount >= 4) {
+                latencyRecorder.mark(LatencyRecorder.DECODED, (1 << Command.CHANNEL_COUNT) - 1,
+                        System.nanoTime());
+            }
+        }
+        Listener target = listener;
+        if (target != null) {
+            target.onFrameReceived(commandId, valueCount, values);
+        }
+    }
+
+
+    /*********************************************************************************************
+     * Functions for debugging
+     *********************************************************************************************/
+
+    /**
+     * Writes the measured latencies to the log output and to the file "latency.txt".
+     * <br>The report is written by a short-lived thread, so the UI thread never touches the disk.
+     */
+    private void reportLatencies() {
+        final LatencyRecorder recorder = latencyRecorder;
+        if (recorder == null) {
+            return;
+        }
+        new Thread(
+                new Runnable() {
+                    public void run() {
+                        writeLatencyReport(recorder);
+                    }
+                }, "LatencyReport").start();
+    }
+
+
+    /**
+     * Writes the latency report. Called from the report thread, not from the UI thread!
+     * <br>The file is in the files directory of the app and is overwritten each time.
+     * @param recorder holding the measured latencies
+     */
+    private void writeLatencyReport(LatencyRecorder recorder) {
+        StringBuilder report = new StringBuilder();
+        FileWriter file = null;
+        try {
+            recorder.report(report);
+            MoodlightLog.i(report.toString());
+            file = new FileWriter(new File(getFilesDir(), "latency.txt"));
+            file.write(report.toString());
+        } catch (IOException e) {
+            MoodlightLog.e("Latency report not written: {}", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+
+/**
+ * Link to the Moodlight over a Bluetooth RFCOMM socket.
+ * <br>
+ * The socket is opened by the ConnectionManager in its own thread,
+ * failed attempts are repeated with exponentially growing pauses.
+ * As soon as the socket is open, a reader thread blocks in read() until data arrives
+ * and passes the received bytes to the listener.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - Closing the socket also closes the streams, which ends the blocking read()
+ * of the reader thread. Thus close() never blocks.<br>
+ * - Each connection gets its own reader thread and buffer. A reader which is not
+ * the current one anymore, e.g. after reopen(), ends without touching the new link.</i>
+ */
+public class RfcommTransport implements MoodlightTransport {
+
+    /** Size of the buffer of each reader thread */          private static final int READ_BUFFER_SIZE = 256;
+
+    /** Opens the socket in its own thread */                private final ConnectionManager connectionManager;
+    /** Gets the state and the received data */              private volatile Listener listener;
+    /** Stream for transmitting, null if not open */         private volatile OutputStream outStream;
+    /** Thread of the current connection, null if none */    private volatile Thread readerThread;
+
+
+    /**
+     * Creates a new closed link.
+     * @param device           Bluetooth device of the Moodlight
+     * @param uuid             SerialPortService ID
+     * @param maxAttempts      maximum tries to connect
+     * @param initialBackoffMs wait before the second attempt in ms, doubled after each failure
+     * @param maxBackoffMs     maximum wait between two attempts in ms
+     * @param closeTimeMs      wait after closing a connection before reconnecting in ms
+     */
+    public RfcommTransport(BluetoothDevice device, UUID uuid, int maxAttempts,
+                           long initialBackoffMs, long maxBackoffMs, long closeTimeMs) {
+        connectionManager = new ConnectionManager(device, uuid, maxAttempts,
+                initialBackoffMs, maxBackoffMs, closeTimeMs,
+                new ConnectionManager.Listener() {          // Called from the connection thread
+                    public void onStateChanged(int state, int attempt, Exception cause) {
+                        if (state != ConnectionManager.CONNECTED) {
+                            outStream = null;
+                        }
+                        listener.onStateChanged(state, attempt, cause);
+                    }
+
+                    public void onConnected(InputStream inStream, OutputStream outStream) {
+                        RfcommTransport.this.outStream = outStream;
+                        listenForData(inStream);
+                        listener.onOpened();
+                    }
+
+                    public void onConnectionFailed() {
+                        listener.onOpenFailed();
+                    }
+                });
+    }
+
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    @Override
+    public int getState() {
+        return connectionManager.getState();    // The states have the same values
+    }
+
+
+    @Override
+    public void open() {
+        connectionManager.connect();
+    }
+
+
+    @Override
+    public synchronized void close() {
+        retireReaderThread();
+        outStream = null;
+        connectionManager.disconnect();
+    }
+
+
+    @Override
+    public synchronized void reopen() {
+        retireReaderThread();
+        outStream = null;
+        connectionManager.onLinkLost();
+    }
+
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        OutputStream out = outStream;
+        if (out == null) {
+            throw new IOException("Bluetooth device not connected");
+        }
+        out.write(buffer, offset, length);
+        out.flush();
+    }
+
+
+    /**
+     * Starts a new Thread which listens for incoming data and passes it to the listener.
+     * <br>The Thread blocks in read() until data arrives,
+     * so received data is processed immediately and nothing runs while the link is idle.
+     * @param inStream stream of the new connection
+     */
+    private synchronized void listenForData(final InputStream inStream) {
+        retireReaderThread();                   // A reader of an old connection must not stay
+        final byte[] readBuffer = new byte[READ_BUFFER_SIZE];  // Not shared with old readers
+        readerThread = new Thread(              // Thread listens for incoming data
+                new Runnable() {                // Uses inner classes
+                    public void run() {
+                        Thread self = Thread.currentThread();
+                        while (readerThread == self) {
+                            try {
+                                int bytesRead = inStream.read(readBuffer);  // Blocks until data
+                                if (bytesRead < 0) {
+                                    throw new IOException("End of stream");
+                                }
+                                if (readerThread == self) {
+                                    listener.onReceived(readBuffer, 0, bytesRead);
+                                }
+                            } catch (Exception e) {
+                                onReaderFailed(self, e);
+                                return;
+                            }
+                        }
+                    }
+                }, "RfcommTransport");
+        readerThread.start();
+    }
+
+
+    /**
+     * Reports a lost link and reconnects, but only if the failed reader is still the current one.
+     * <br>Otherwise the link was closed on purpose or already replaced by a new connection,
+     * which must not be touched.
+     * @param reader the reader thread whose read() failed
+     * @param e      the reason
+     */
+    private synchronized void onReaderFailed(Thread reader, Exception e) {
+        if (readerThread != reader) {
+            return;
+        }
+        readerThread = null;
+        outStream = null;
+        listener.onStateChanged(ConnectionManager.DISCONNECTED, 0, e);
+        connectionManager.onLinkLost();
+    }
+
+
+    /**
+     * Stops the reader thread of the current connection. Must be called while holding the lock.
+     * <br>Its blocking read() ends when the socket is closed, then it finds it was retired.
+     */
+    private void retireReaderThread() {
+        if (readerThread != null) {
+            readerThread.interrupt();
+            readerThread = null;
+        }
+    }
+}
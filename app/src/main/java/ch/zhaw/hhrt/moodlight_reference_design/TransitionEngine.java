@@ -0,0 +1,173 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import android.graphics.Color;
+
+
+/**
+ * Fades the Moodlight smoothly from one color to another within a given time.
+ * <br>
+ * The colors are interpolated either in RGB or in HSV, the color model of the ColorPicker:
+ * <ul>
+ *     <li>RGB: each channel changes linearly, e.g. red to green passes a dark yellow</li>
+ *     <li>HSV: hue, saturation and value change linearly, the hue along the shorter way
+ *     around the color wheel, e.g. red to green passes a bright yellow</li>
+ * </ul>
+ * The engine is an Animation of the TransmitQueue: the writer thread asks it for the color
+ * of this moment each time the link is ready for the next frame.
+ * Thus the keyframes are sent at the rate the link sustains,
+ * a slow or congested link gets fewer keyframes instead of a growing backlog,
+ * and the transition always ends on time with the target color.
+ * Keyframes equal to the previous one are not sent at all,
+ * so a slow transition between similar colors needs only a few frames.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - The white channel is set to the brightest of red, green and blue, like setColor() does.<br>
+ * - Without the batched color command only the changed channels are sent,
+ *   an optional final command, e.g. "idle", follows the last keyframe.<br>
+ * - No objects are created per keyframe.</i>
+ */
+public class TransitionEngine implements TransmitQueue.Animation {
+
+    /** Interpolate red, green and blue */                  public static final int RGB = 0;
+    /** Interpolate hue, saturation and value */            public static final int HSV = 1;
+
+    /** Start color as RGB */                               private final int fromColor;
+    /** Target color as RGB */                              private final int toColor;
+    /** Start color as hue, saturation and value */         private final float[] fromHSV;
+    /** Change of hue, saturation and value */              private final float[] deltaHSV;
+    /** RGB or HSV */                                       private final int model;
+    /** Start time from System.nanoTime() */                private final long startTime;
+    /** Duration of the transition in nanoseconds */        private final long durationNanos;
+    /** Send all channels with one color frame */           private final boolean batchedColor;
+    /** Sent after the last keyframe, may be null */        private final String finalCommand;
+
+    /** Scratch buffer for the HSV interpolation */         private final float[] hsv;
+    /** Channel values sent last, -1 = none */              private final int[] sentValues;
+    /** Channel values of this keyframe */                  private final int[] values;
+
+
+    /**
+     * Creates a new transition starting now.
+     * @param fromColor     RGB color shown at the start, e.g. the actual SeekBar values
+     * @param toColor       RGB color shown at the end
+     * @param durationMs    duration of the transition in ms
+     * @param model         RGB or HSV
+     * @param batchedColor  true if the Moodlight supports the batched color command
+     * @param finalCommand  sent after the last keyframe if not batched, may be null
+     */
+    public TransitionEngine(int fromColor, int toColor, int durationMs, int model,
+                            boolean batchedColor, String finalCommand) {
+        this.fromColor = fromColor;
+        this.toColor = toColor;
+        this.model = model;
+        this.batchedColor = batchedColor;
+        this.finalCommand = finalCommand;
+        durationNanos = Math.max(1, durationMs * 1000000L);
+        fromHSV = new float[3];
+        deltaHSV = new float[3];
+        Color.colorToHSV(fromColor, fromHSV);
+        float[] toHSV = new float[3];
+        Color.colorToHSV(toColor, toHSV);
+        // The hue of black, white and gray is undefined, take the hue of the other color
+        if (fromHSV[1] == 0f || fromHSV[2] == 0f) {
+            fromHSV[0] = toHSV[0];
+        } else if (toHSV[1] == 0f || toHSV[2] == 0f) {
+            toHSV[0] = fromHSV[0];
+        }
+        float hueDelta = toHSV[0] - fromHSV[0];
+        if (hueDelta > 180f) {
+            hueDelta -= 360f;                   // Shorter way around the color wheel
+        } else if (hueDelta < -180f) {
+            hueDelta += 360f;
+        }
+        deltaHSV[0] = hueDelta;
+        deltaHSV[1] = toHSV[1] - fromHSV[1];
+        deltaHSV[2] = toHSV[2] - fromHSV[2];
+        hsv = new float[3];
+        sentValues = new int[Command.CHANNEL_COUNT];
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            sentValues[channel] = -1;
+        }
+        values = new int[Command.CHANNEL_COUNT];
+        startTime = System.nanoTime();
+    }
+
+
+    /**
+     * Puts the color of this moment into the queue, if it changed since the last keyframe.
+     * <br>Called by the writer thread of the TransmitQueue.
+     */
+    @Override
+    public boolean onFrameReady(TransmitQueue queue, long now) {
+        float fraction = Math.min(1f, (float) (now - startTime) / durationNanos);
+        boolean finished = fraction >= 1f;
+        setValues(finished ? toColor : interpolate(fraction));
+        boolean changed = false;
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            if (values[channel] != sentValues[channel]) {
+                changed = true;
+                if (!batchedColor) {
+                    queue.sendChannel(channel, values[channel]);
+                }
+                sentValues[channel] = values[channel];
+            }
+        }
+        if (changed && batchedColor) {
+            queue.sendColor(values[Command.RED], values[Command.GREEN],
+                    values[Command.BLUE], values[Command.WHITE]);
+        }
+        if (finished && !batchedColor && finalCommand != null) {
+            queue.send(finalCommand);
+        }
+        return !finished;
+    }
+
+
+    /**
+     * Calculates the color at a point of the transition.
+     * @param fraction 0 at the start ... 1 at the end
+     * @return RGB color
+     */
+    private int interpolate(float fraction) {
+        if (model == HSV) {
+            hsv[0] = fromHSV[0] + deltaHSV[0] * fraction;
+            if (hsv[0] < 0f) {
+                hsv[0] += 360f;
+            } else if (hsv[0] >= 360f) {
+                hsv[0] -= 360f;
+            }
+            hsv[1] = fromHSV[1] + deltaHSV[1] * fraction;
+            hsv[2] = fromHSV[2] + deltaHSV[2] * fraction;
+            return Color.HSVToColor(hsv);
+        }
+        int red = mix(Color.red(fromColor), Color.red(toColor), fraction);
+        int green = mix(Color.green(fromColor), Color.green(toColor), fraction);
+        int blue = mix(Color.blue(fromColor), Color.blue(toColor), fraction);
+        return Color.rgb(red, green, blue);
+    }
+
+
+    /**
+     * Splits a color into the channel values of the Moodlight.
+     * @param color RGB color, the white channel is set to the brightest of the three
+     */
+    private void setValues(int color) {
+        values[Command.RED] = Color.red(color);
+        values[Command.GREEN] = Color.green(color);
+        values[Command.BLUE] = Color.blue(color);
+        values[Command.WHITE] = Math.max(values[Command.RED],
+                Math.max(values[Command.GREEN], values[Command.BLUE]));
+    }
+
+
+    /**
+     * Interpolates linearly between two channel values.
+     * @param from     value at the start
+     * @param to       value at the end
+     * @param fraction 0 at the start ... 1 at the end
+     * @return the rounded value
+     */
+    private static int mix(int from, int to, float fraction) {
+        return Math.round(from + (to - from) * fraction);
+    }
+}
@@ -0,0 +1,105 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import android.view.Choreographer;
+
+
+/**
+ * Collects the channel values received from the Moodlight and publishes them to the UI
+ * at most once per display frame.
+ * <br>
+ * The receiving thread only stores the latest value of each channel and marks it as changed.
+ * The first change after a publication asks the Choreographer for the next display frame.
+ * When the frame comes, the changed values are handed to the target in the UI thread.
+ * Thus a burst of replies causes only one SeekBar update per channel and one layout pass,
+ * and values overwritten before the frame are never shown.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - Must be created in the UI thread, as the Choreographer belongs to the creating thread.<br>
+ * - No objects are created per received value or per display frame.</i>
+ */
+public class UiUpdateBatcher implements Choreographer.FrameCallback {
+
+
+    /**
+     * Receives the collected values in the UI thread.
+     */
+    public interface Target {
+        /**
+         * Called once per display frame if any channel value changed.
+         * @param changedChannels bit mask, bit n is set if channel n changed
+         * @param values          latest value of each channel, indexed by Command channel id
+         * @param lastChannel     channel which was received last
+         */
+        void onChannelsUpdated(int changedChannels, int[] values, int lastChannel);
+    }
+
+
+    /** Display frame timing of the UI thread */             private final Choreographer choreographer;
+    /** Gets the collected values */                         private final Target target;
+    /** Latest values written by the receiving thread */     private final int[] pendingValues;
+    /** Copy of the values handed to the target */           private final int[] publishedValues;
+    /** Bit mask of the channels changed since publishing */ private int changedChannels;
+    /** Channel which was received last */                   private int lastChannel;
+    /** A frame callback is already posted */                private boolean frameScheduled;
+
+
+    /**
+     * Creates a new batcher. Must be called in the UI thread.
+     * @param target gets the collected values once per display frame
+     */
+    public UiUpdateBatcher(Target target) {
+        this.target = target;
+        choreographer = Choreographer.getInstance();
+        pendingValues = new int[Command.CHANNEL_COUNT];
+        publishedValues = new int[Command.CHANNEL_COUNT];
+    }
+
+
+    /**
+     * Stores a received channel value. Can be called from any thread.
+     * @param channel Command channel id
+     * @param value   received value
+     */
+    public synchronized void postChannel(int channel, int value) {
+        pendingValues[channel] = value;
+        changedChannels |= 1 << channel;
+        lastChannel = channel;
+        if (!frameScheduled) {
+            frameScheduled = true;
+            choreographer.postFrameCallback(this);
+        }
+    }
+
+
+    /**
+     * Forgets values not published yet, e.g. when the activity is stopped.
+     */
+    public synchronized void cancel() {
+        changedChannels = 0;
+        if (frameScheduled) {
+            frameScheduled = false;
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+
+    /**
+     * Called by the Choreographer in the UI thread when the next display frame is drawn.
+     * @param frameTimeNanos time of the display frame
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        int changed;
+        int last;
+        synchronized (this) {
+            frameScheduled = false;
+            changed = changedChannels;
+            changedChannels = 0;
+            last = lastChannel;
+            System.arraycopy(pendingValues, 0, publishedValues, 0, pendingValues.length);
+        }
+        if (changed != 0) {
+            target.onChannelsUpdated(changed, publishedValues, last);
+        }
+    }
+}
@@ -16,29 +16,27 @@
 
 package com.chiralcode.colorpicker;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.ComposeShader;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
-import android.graphics.PorterDuff;
-import android.graphics.RadialGradient;
+import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Shader.TileMode;
 import android.graphics.SweepGradient;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
+import java.util.concurrent.Future;
+
 public class ColorPicker extends View {
 
     /**
@@ -49,13 +47,13 @@ public class ColorPicker extends View {
     private final int paramValueSliderWidth = 10; // width of the value slider
     private final int paramArrowPointerSize = 4; // size of the arrow pointer; set to 0 to hide the pointer
 
-    private Paint colorWheelPaint;
     private Paint valueSliderPaint;
 
     private Paint colorViewPaint;
 
     private Paint colorPointerPaint;
     private RectF colorPointerCoords;
+    private Rect dirtyRect;
 
     private Paint valuePointerPaint;
     private Paint valuePointerArrowPaint;
@@ -68,6 +66,10 @@ public class ColorPicker extends View {
     private Path arrowPointerPath;
 
     private Bitmap colorWheelBitmap;
+    private boolean softwareWheel;
+    private Future<?> colorWheelRequest;
+    private RectF colorWheelRect;
+    private Paint placeholderPaint;
 
     private int valueSliderWidth;
     private int innerPadding;
@@ -80,6 +82,23 @@ public class ColorPicker extends View {
 
     private Matrix gradientRotationMatrix;
 
+    /** Scratch arrays reused by onDraw(), so drawing allocates nothing */
+    private float[] sliderHSV = new float[] { 0f, 0f, 1f };
+    private int[] sliderColors = new int[] { Color.BLACK, Color.WHITE, Color.WHITE };
+    private float[] pointerHSV = new float[] { 0f, 0f, 0f };
+
+    /** Color before the current touch event, to find out what it changed */
+    private float[] previousHSV = new float[3];
+
+    private OnColorChangedListener onColorChangedListener;
+    private int colorChangedInterval;
+    private long colorChangedTime;
+    private int notifiedColor;
+
+    /** Hue and saturation of the value slider gradient; -1 forces a rebuild */
+    private float sliderHue = -1f;
+    private float sliderSaturation = -1f;
+
     /** Currently selected color */
     private float[] colorHSV = new float[] { 0f, 0f, 1f };
 
@@ -111,10 +130,6 @@ public class ColorPicker extends View {
 
         valuePointerArrowPaint = new Paint();
 
-        colorWheelPaint = new Paint();
-        colorWheelPaint.setAntiAlias(true);
-        colorWheelPaint.setDither(true);
-
         valueSliderPaint = new Paint();
         valueSliderPaint.setAntiAlias(true);
         valueSliderPaint.setDither(true);
@@ -128,8 +143,12 @@ public class ColorPicker extends View {
 
         outerWheelRect = new RectF();
         innerWheelRect = new RectF();
+        colorWheelRect = new RectF();
 
         colorPointerCoords = new RectF();
+        dirtyRect = new Rect();
+
+        placeholderPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     }
 
@@ -141,7 +160,6 @@ public class ColorPicker extends View {
         setMeasuredDimension(size, size);
     }
 
-    @SuppressLint("DrawAllocation")
     @Override
     protected void onDraw(Canvas canvas) {
 
@@ -150,20 +168,23 @@ public class ColorPicker extends View {
 
         // drawing color wheel
 
-        canvas.drawBitmap(colorWheelBitmap, centerX - colorWheelRadius, centerY - colorWheelRadius, null);
+        if (colorWheelBitmap.getWidth() == colorWheelRadius * 2) {
+            canvas.drawBitmap(colorWheelBitmap, centerX - colorWheelRadius, centerY - colorWheelRadius, null);
+        } else {
+            // placeholder or preview level, until the wheel drawn in the background is ready
+            canvas.drawBitmap(colorWheelBitmap, null, colorWheelRect, placeholderPaint);
+        }
 
         // drawing color view
 
         colorViewPaint.setColor(Color.HSVToColor(colorHSV));
         canvas.drawPath(colorViewPath, colorViewPaint);
 
-        // drawing value slider
-
-        float[] hsv = new float[] { colorHSV[0], colorHSV[1], 1f };
+        // drawing value slider, its gradient only depends on hue and saturation
 
-        SweepGradient sweepGradient = new SweepGradient(centerX, centerY, new int[] { Color.BLACK, Color.HSVToColor(hsv), Color.WHITE }, null);
-        sweepGradient.setLocalMatrix(gradientRotationMatrix);
-        valueSliderPaint.setShader(sweepGradient);
+        if (colorHSV[0] != sliderHue || colorHSV[1] != sliderSaturation) {
+            updateValueSliderShader(centerX, centerY);
+        }
 
         canvas.drawPath(valueSliderPath, valueSliderPaint);
 
@@ -182,7 +203,8 @@ public class ColorPicker extends View {
 
         // drawing value pointer
 
-        valuePointerPaint.setColor(Color.HSVToColor(new float[] { 0f, 0f, 1f - colorHSV[2] }));
+        pointerHSV[2] = 1f - colorHSV[2];
+        valuePointerPaint.setColor(Color.HSVToColor(pointerHSV));
 
         double valueAngle = (colorHSV[2] - 0.5f) * Math.PI;
         float valueAngleX = (float) Math.cos(valueAngle);
@@ -199,6 +221,21 @@ public class ColorPicker extends View {
 
     }
 
+    private void updateValueSliderShader(int centerX, int centerY) {
+
+        sliderHue = colorHSV[0];
+        sliderSaturation = colorHSV[1];
+        sliderHSV[0] = sliderHue;
+        sliderHSV[1] = sliderSaturation;
+        sliderColors[1] = Color.HSVToColor(sliderHSV);
+
+        // Shader colors can not be changed, so only a new hue or saturation creates a new one
+        SweepGradient sweepGradient = new SweepGradient(centerX, centerY, sliderColors, null);
+        sweepGradient.setLocalMatrix(gradientRotationMatrix);
+        valueSliderPaint.setShader(sweepGradient);
+
+    }
+
     private void drawPointerArrow(Canvas canvas) {
 
         int centerX = getWidth() / 2;
@@ -250,10 +287,12 @@ public class ColorPicker extends View {
         outerWheelRect.set(centerX - outerWheelRadius, centerY - outerWheelRadius, centerX + outerWheelRadius, centerY + outerWheelRadius);
         innerWheelRect.set(centerX - innerWheelRadius, centerY - innerWheelRadius, centerX + innerWheelRadius, centerY + innerWheelRadius);
 
-        colorWheelBitmap = createColorWheelBitmap(colorWheelRadius * 2, colorWheelRadius * 2);
+        colorWheelRect.set(centerX - colorWheelRadius, centerY - colorWheelRadius, centerX + colorWheelRadius, centerY + colorWheelRadius);
+        requestColorWheel();
 
         gradientRotationMatrix = new Matrix();
         gradientRotationMatrix.preRotate(270, width / 2, height / 2);
+        sliderHue = -1f; // the gradient is centered, rebuild it for the new size
 
         colorViewPath.arcTo(outerWheelRect, 270, -180);
         colorViewPath.arcTo(innerWheelRect, 90, 180);
@@ -263,73 +302,242 @@ public class ColorPicker extends View {
 
     }
 
-    private Bitmap createColorWheelBitmap(int width, int height) {
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        int action = event.getAction();
+        switch (action) {
+        case MotionEvent.ACTION_DOWN:
+        case MotionEvent.ACTION_MOVE:
+
+            System.arraycopy(colorHSV, 0, previousHSV, 0, 3);
+            dirtyRect.setEmpty();
+            unionPointerBounds(); // where the pointers were
+
+            // Moves are batched into one event per frame, the latest sample on the wheel
+            // or the slider decides, so the color is computed once per frame
+            boolean hit = applyTouch(event.getX(), event.getY());
+            for (int i = event.getHistorySize() - 1; i >= 0 && !hit; i--) {
+                hit = applyTouch(event.getHistoricalX(i), event.getHistoricalY(i));
+            }
+
+            invalidateChanges();
+            notifyColorChanged(false);
+
+            return true;
 
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+        case MotionEvent.ACTION_UP:
+        case MotionEvent.ACTION_CANCEL:
 
-        int colorCount = 12;
-        int colorAngleStep = 360 / 12;
-        int colors[] = new int[colorCount + 1];
-        float hsv[] = new float[] { 0f, 1f, 1f };
-        for (int i = 0; i < colors.length; i++) {
-            hsv[0] = (i * colorAngleStep + 180) % 360;
-            colors[i] = Color.HSVToColor(hsv);
+            notifyColorChanged(true); // the final color without delay
+            break;
         }
-        colors[colorCount] = colors[0];
+        return super.onTouchEvent(event);
+    }
 
-        SweepGradient sweepGradient = new SweepGradient(width / 2, height / 2, colors, null);
-        RadialGradient radialGradient = new RadialGradient(width / 2, height / 2, colorWheelRadius, 0xFFFFFFFF, 0x00FFFFFF, TileMode.CLAMP);
-        ComposeShader composeShader = new ComposeShader(sweepGradient, radialGradient, PorterDuff.Mode.SRC_OVER);
+    /**
+     * Takes the color from a touch position, returns false if it is neither on the wheel nor on the slider.
+     */
+    private boolean applyTouch(float x, float y) {
 
-        colorWheelPaint.setShader(composeShader);
+        float cx = x - getWidth() / 2;
+        float cy = y - getHeight() / 2;
+        float d = (float) Math.sqrt(cx * cx + cy * cy);
 
-        Canvas canvas = new Canvas(bitmap);
-        canvas.drawCircle(width / 2, height / 2, colorWheelRadius, colorWheelPaint);
+        if (d <= colorWheelRadius) {
 
-        return bitmap;
+            colorHSV[0] = (float) (Math.toDegrees(Math.atan2(cy, cx)) + 180f);
+            colorHSV[1] = Math.max(0f, Math.min(1f, d / colorWheelRadius));
+            return true;
+
+        } else if (x >= getWidth() / 2 && d >= innerWheelRadius) {
+
+            colorHSV[2] = (float) Math.max(0, Math.min(1, Math.atan2(cy, cx) / Math.PI + 0.5f));
+            return true;
+
+        }
+        return false;
 
     }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        int action = event.getAction();
-        switch (action) {
-        case MotionEvent.ACTION_DOWN:
-        case MotionEvent.ACTION_MOVE:
+    /**
+     * Invalidates only what a touch changed: the old and new pointers, the color view if the color changed
+     * and the value slider if its gradient changed. Nothing is redrawn if the touch changed nothing.
+     */
+    private void invalidateChanges() {
+
+        if (colorHSV[0] == previousHSV[0] && colorHSV[1] == previousHSV[1] && colorHSV[2] == previousHSV[2]) {
+            return;
+        }
 
-            int x = (int) event.getX();
-            int y = (int) event.getY();
-            int cx = x - getWidth() / 2;
-            int cy = y - getHeight() / 2;
-            double d = Math.sqrt(cx * cx + cy * cy);
+        int centerX = getWidth() / 2;
+        int centerY = getHeight() / 2;
 
-            if (d <= colorWheelRadius) {
+        unionPointerBounds();
+        if (Color.HSVToColor(colorHSV) != Color.HSVToColor(previousHSV)) {
+            // the color view, the arrow is part of the pointer bounds
+            dirtyRect.union(centerX - outerWheelRadius - 1, centerY - outerWheelRadius - 1, centerX, centerY + outerWheelRadius + 1);
+        }
 
-                colorHSV[0] = (float) (Math.toDegrees(Math.atan2(cy, cx)) + 180f);
-                colorHSV[1] = Math.max(0f, Math.min(1f, (float) (d / colorWheelRadius)));
+        if (colorHSV[0] != previousHSV[0] || colorHSV[1] != previousHSV[1]) {
+            // the value slider, its gradient follows hue and saturation
+            dirtyRect.union(centerX, centerY - outerWheelRadius - 1, centerX + outerWheelRadius + 1, centerY + outerWheelRadius + 1);
+        }
 
-                invalidate();
+        invalidate(dirtyRect);
+
+    }
+
+    /**
+     * Adds the bounds of the color wheel pointer, the value pointer and the arrow to the dirty rect,
+     * as drawn by onDraw() for the current color.
+     */
+    private void unionPointerBounds() {
+
+        int centerX = getWidth() / 2;
+        int centerY = getHeight() / 2;
+
+        float hueAngle = (float) Math.toRadians(colorHSV[0]);
+        float pointerRadius = 0.075f * colorWheelRadius;
+        int pointerX = (int) ((int) (-Math.cos(hueAngle) * colorHSV[1] * colorWheelRadius) + centerX - pointerRadius / 2);
+        int pointerY = (int) ((int) (-Math.sin(hueAngle) * colorHSV[1] * colorWheelRadius) + centerY - pointerRadius / 2);
+        dirtyRect.union(pointerX - 2, pointerY - 2, (int) (pointerX + pointerRadius) + 3, (int) (pointerY + pointerRadius) + 3);
+
+        // the value pointer and the arrow lie on one ray, the arrow spreads by PI / 96 to both sides
+        double valueAngle = (colorHSV[2] - 0.5f) * Math.PI;
+        float valueAngleX = (float) Math.cos(valueAngle);
+        float valueAngleY = (float) Math.sin(valueAngle);
+        int arrowRadius = outerWheelRadius + arrowPointerSize;
+        int margin = (int) (arrowRadius * Math.PI / 96) + 2;
+
+        float innerX = valueAngleX * innerWheelRadius + centerX;
+        float innerY = valueAngleY * innerWheelRadius + centerY;
+        float outerX = valueAngleX * arrowRadius + centerX;
+        float outerY = valueAngleY * arrowRadius + centerY;
+        dirtyRect.union((int) Math.min(innerX, outerX) - margin, (int) Math.min(innerY, outerY) - margin, (int) Math.max(innerX, outerX) + margin + 1,
+                (int) Math.max(innerY, outerY) + margin + 1);
+
+    }
+
+    public void setColor(int color) {
+        Color.colorToHSV(color, colorHSV);
+    }
+
+    /**
+     * Selects how the color wheel is drawn: with shaders through Canvas (default)
+     * or in pure Java by the ColorWheelRasterizer, which is faster at high resolutions.
+     */
+    public void setSoftwareWheel(boolean softwareWheel) {
+        this.softwareWheel = softwareWheel;
+        if (colorWheelRadius > 0) {
+            requestColorWheel();
+            invalidate();
+        }
+    }
+
+    /**
+     * Takes the wheel from the cache, or shows a placeholder and has the wheel drawn
+     * in the background. A request for a previous size is cancelled.
+     */
+    private void requestColorWheel() {
 
-            } else if (x >= getWidth() / 2 && d >= innerWheelRadius) {
+        if (colorWheelRequest != null) {
+            colorWheelRequest.cancel(false);
+            colorWheelRequest = null;
+        }
 
-                colorHSV[2] = (float) Math.max(0, Math.min(1, Math.atan2(cy, cx) / Math.PI + 0.5f));
+        final int diameter = colorWheelRadius * 2;
+        final boolean software = softwareWheel;
 
+        colorWheelBitmap = ColorWheelCache.getCachedColorWheel(diameter, software);
+        if (colorWheelBitmap != null) {
+            return;
+        }
+        colorWheelBitmap = ColorWheelCache.getPlaceholder();
+
+        colorWheelRequest = ColorWheelCache.requestColorWheel(getContext(), diameter, software, new ColorWheelCache.Callback() {
+            @Override
+            public void onColorWheelReady(Bitmap bitmap) {
+                if (diameter != colorWheelRadius * 2 || software != softwareWheel) {
+                    return; // the size changed while it was being drawn
+                }
+                colorWheelBitmap = bitmap;
+                if (bitmap.getWidth() == diameter) {
+                    colorWheelRequest = null; // otherwise a preview level, the full one follows
+                }
                 invalidate();
             }
+        });
 
-            return true;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (colorWheelBitmap != null && colorWheelBitmap.getWidth() != colorWheelRadius * 2) {
+            requestColorWheel(); // the request was cancelled when detached
         }
-        return super.onTouchEvent(event);
     }
 
-    public void setColor(int color) {
-        Color.colorToHSV(color, colorHSV);
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        removeCallbacks(colorChangedNotifier);
+        if (colorWheelRequest != null) {
+            colorWheelRequest.cancel(false);
+            colorWheelRequest = null;
+        }
     }
 
     public int getColor() {
         return Color.HSVToColor(colorHSV);
     }
 
+    /**
+     * Reports the color while it is being picked, e.g. for a live preview over a slow connection.
+     * The listener is called at most once per minInterval milliseconds, always with the latest color,
+     * and at once when the finger is lifted.
+     */
+    public void setOnColorChangedListener(OnColorChangedListener listener, int minInterval) {
+        onColorChangedListener = listener;
+        colorChangedInterval = minInterval;
+        notifiedColor = getColor();
+        removeCallbacks(colorChangedNotifier);
+    }
+
+    private final Runnable colorChangedNotifier = new Runnable() {
+        @Override
+        public void run() {
+            notifyColorChanged(true);
+        }
+    };
+
+    private void notifyColorChanged(boolean now) {
+
+        if (onColorChangedListener == null) {
+            return;
+        }
+
+        int color = getColor();
+        if (color == notifiedColor) {
+            removeCallbacks(colorChangedNotifier);
+            return;
+        }
+
+        long time = SystemClock.uptimeMillis();
+        long wait = colorChangedTime + colorChangedInterval - time;
+        if (now || wait <= 0) {
+            removeCallbacks(colorChangedNotifier);
+            notifiedColor = color;
+            colorChangedTime = time;
+            onColorChangedListener.onColorChanged(color);
+        } else {
+            // rate limited, the notifier will report whatever color is picked by then
+            removeCallbacks(colorChangedNotifier);
+            postDelayed(colorChangedNotifier, wait);
+        }
+
+    }
+
     @Override
     protected Parcelable onSaveInstanceState() {
         Bundle state = new Bundle();
@@ -349,4 +557,8 @@ public class ColorPicker extends View {
         }
     }
 
+    public interface OnColorChangedListener {
+        public void onColorChanged(int color);
+    }
+
 }
@@ -41,7 +41,7 @@ public class ColorPickerDialog extends AlertDialog {
                 onColorSelectedListener.onColorSelected(selectedColor);
                 break;
             case BUTTON_NEGATIVE:
-                dialog.dismiss();
+                dialog.cancel(); // dismisses and notifies the OnCancelListener, e.g. to undo a preview
                 break;
             }
             //int color = colorPickerView.getColor();
@@ -49,6 +49,13 @@ public class ColorPickerDialog extends AlertDialog {
         }
     };
 
+    /**
+     * Reports the color while it is being picked, see ColorPicker.setOnColorChangedListener().
+     */
+    public void setOnColorChangedListener(ColorPicker.OnColorChangedListener listener, int minInterval) {
+        colorPickerView.setOnColorChangedListener(listener, minInterval);
+    }
+
     public interface OnColorSelectedListener {
         public void onColorSelected(int color);
     }
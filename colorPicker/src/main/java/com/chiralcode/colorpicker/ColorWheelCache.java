@@ -0,0 +1,375 @@
+/*
+ * Copyright 2013 Piotr Adamus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chiralcode.colorpicker;
+
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.ComposeShader;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.RadialGradient;
+import android.graphics.Shader.TileMode;
+import android.graphics.SweepGradient;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Process-wide cache of the color wheel bitmaps, shared by all color picker views.
+ *
+ * The wheel only depends on its diameter and on how it is drawn: with the shaders through Canvas,
+ * or in pure Java by the ColorWheelRasterizer. So the bitmaps are kept per diameter and renderer
+ * in least recently used order. Reopening a picker, or laying it out again with the same size,
+ * takes the bitmap from the cache instead of drawing the shaders again.
+ *
+ * The cache is bounded to a share of the heap; the least recently used bitmaps are evicted
+ * first. When the system asks the app to trim memory, the cache is shrunk or cleared.
+ * Evicted bitmaps are not recycled, as a view may still draw them.
+ *
+ * The views request their wheel with requestColorWheel(), so it is drawn by a background thread
+ * while the UI thread stays responsive. Until it is ready, they show a placeholder: a cached
+ * wheel of another size or a tiny wheel, scaled up. A request which became stale, e.g. because
+ * the size changed again, is cancelled; if it is still queued, it is never drawn.
+ *
+ * Large wheels come progressively: a quarter resolution level is delivered first, which the
+ * views scale up, then the full resolution. All levels stay cached like any other wheel, and a
+ * wheel for a new size is downsampled from a cached level of up to twice its diameter, which is
+ * much cheaper than drawing it again.
+ */
+public final class ColorWheelCache {
+
+    private static final int HEAP_SHARE = 8; // the cache takes at most 1/8 of the heap
+
+    private static final LinkedHashMap<Integer, Bitmap> bitmaps = new LinkedHashMap<Integer, Bitmap>(4, 0.75f, true);
+    private static final long maxBytes = Runtime.getRuntime().maxMemory() / HEAP_SHARE;
+    private static long cachedBytes;
+    private static boolean callbacksRegistered;
+
+    private static final int PLACEHOLDER_DIAMETER = 48; // rasterized in well below a millisecond
+    private static final int PREVIEW_FACTOR = 4; // the first level has a quarter of the resolution
+    private static final int PREVIEW_MIN_DIAMETER = 256; // smaller wheels are drawn at once
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ColorWheelCache");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static Handler mainHandler;
+
+    /**
+     * Receives the wheel drawn in the background, called in the UI thread.
+     * A large wheel is delivered twice: first at a quarter of the requested diameter, then in full.
+     */
+    public interface Callback {
+        void onColorWheelReady(Bitmap bitmap);
+    }
+
+    private ColorWheelCache() {
+    }
+
+    /**
+     * Returns the color wheel bitmap of a given diameter, drawn only if not cached yet.
+     * The bitmap is shared and must not be modified.
+     *
+     * @param software true to compute the pixels with the ColorWheelRasterizer instead of the shaders
+     */
+    public static Bitmap getColorWheel(Context context, int diameter, boolean software) {
+        registerCallbacks(context);
+        return loadColorWheel(diameter, software);
+    }
+
+    /**
+     * Returns the color wheel bitmap of a given diameter if it is cached, null otherwise.
+     */
+    public static synchronized Bitmap getCachedColorWheel(int diameter, boolean software) {
+        return bitmaps.get(keyOf(diameter, software));
+    }
+
+    /**
+     * Draws the color wheel bitmap in a background thread, if it is not cached yet.
+     * The callback is called in the UI thread, unless the returned request was cancelled before.
+     * Check that the delivered wheel still fits, as it may be on its way while being cancelled.
+     */
+    public static Future<?> requestColorWheel(Context context, int diameter, boolean software, Callback callback) {
+
+        registerCallbacks(context);
+
+        final ColorWheelRequest request = new ColorWheelRequest(diameter, software, callback, getMainHandler());
+        FutureTask<Bitmap> task = new FutureTask<Bitmap>(request) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    return;
+                }
+                try {
+                    request.deliver(get());
+                } catch (Exception e) {
+                    // e.g. out of memory, the placeholder stays
+                }
+            }
+        };
+        request.task = task;
+        executor.execute(task);
+        return task;
+
+    }
+
+    /**
+     * Returns a bitmap to show until the requested wheel is ready: the most recently
+     * used wheel of any size, or a tiny wheel drawn right away. It has to be scaled when drawn.
+     */
+    public static synchronized Bitmap getPlaceholder() {
+
+        Bitmap placeholder = null;
+        for (Bitmap bitmap : bitmaps.values()) {
+            placeholder = bitmap; // the last one is the most recently used
+        }
+        if (placeholder == null) {
+            placeholder = putColorWheel(PLACEHOLDER_DIAMETER, true, rasterizeColorWheelBitmap(PLACEHOLDER_DIAMETER));
+        }
+        return placeholder;
+
+    }
+
+    /**
+     * Releases all cached bitmaps.
+     */
+    public static synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Shrinks the cache according to the level passed to ComponentCallbacks2.onTrimMemory().
+     * While the app is only hidden, the most recently used half is kept for a quick return.
+     */
+    public static synchronized void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            trimToSize(maxBytes / 2);
+        }
+    }
+
+    private static Bitmap loadColorWheel(int diameter, boolean software) {
+
+        Bitmap bitmap = getCachedColorWheel(diameter, software);
+        if (bitmap == null) {
+            // Drawn without holding the lock, so the UI thread can look up other wheels meanwhile
+            Bitmap level = findLargerLevel(diameter, software);
+            if (level != null) {
+                bitmap = Bitmap.createScaledBitmap(level, diameter, diameter, true);
+            } else {
+                bitmap = software ? rasterizeColorWheelBitmap(diameter) : createColorWheelBitmap(diameter);
+            }
+            bitmap = putColorWheel(diameter, software, bitmap);
+        }
+        return bitmap;
+
+    }
+
+    private static synchronized Bitmap putColorWheel(int diameter, boolean software, Bitmap bitmap) {
+
+        Integer key = keyOf(diameter, software);
+        Bitmap cached = bitmaps.get(key);
+        if (cached != null) {
+            return cached; // drawn twice at the same time, keep the first one
+        }
+        bitmaps.put(key, bitmap);
+        cachedBytes += sizeOf(bitmap);
+        trimToSize(maxBytes);
+        return bitmap;
+
+    }
+
+    /**
+     * Returns the smallest cached wheel of the same renderer which is larger, but at most twice
+     * as large, so filtering it down keeps the quality of a freshly drawn wheel.
+     */
+    private static synchronized Bitmap findLargerLevel(int diameter, boolean software) {
+
+        Bitmap level = null;
+        for (Map.Entry<Integer, Bitmap> entry : bitmaps.entrySet()) {
+            int key = entry.getKey();
+            int levelDiameter = key / 2;
+            if ((key % 2 == 1) == software && levelDiameter > diameter && levelDiameter <= diameter * 2
+                    && (level == null || levelDiameter < level.getWidth())) {
+                level = entry.getValue();
+            }
+        }
+        return level;
+
+    }
+
+    private static Integer keyOf(int diameter, boolean software) {
+        return diameter * 2 + (software ? 1 : 0);
+    }
+
+    private static synchronized Handler getMainHandler() {
+        if (mainHandler == null) {
+            mainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mainHandler;
+    }
+
+    private static void trimToSize(long size) {
+
+        Iterator<Map.Entry<Integer, Bitmap>> eldest = bitmaps.entrySet().iterator();
+        while (cachedBytes > size && eldest.hasNext()) {
+            Bitmap bitmap = eldest.next().getValue();
+            eldest.remove();
+            cachedBytes -= sizeOf(bitmap);
+        }
+
+    }
+
+    private static long sizeOf(Bitmap bitmap) {
+        return (long) bitmap.getRowBytes() * bitmap.getHeight(); // getByteCount() needs API 12
+    }
+
+    private static synchronized void registerCallbacks(Context context) {
+
+        if (callbacksRegistered || Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+        context.getApplicationContext().registerComponentCallbacks(new TrimCallbacks());
+        callbacksRegistered = true;
+
+    }
+
+    private static Bitmap rasterizeColorWheelBitmap(int diameter) {
+
+        Bitmap bitmap = Bitmap.createBitmap(diameter, diameter, Config.ARGB_8888);
+        bitmap.setPixels(ColorWheelRasterizer.render(diameter), 0, diameter, 0, 0, diameter, diameter);
+        return bitmap;
+
+    }
+
+    private static Bitmap createColorWheelBitmap(int diameter) {
+
+        Bitmap bitmap = Bitmap.createBitmap(diameter, diameter, Config.ARGB_8888);
+        int radius = diameter / 2;
+
+        int colorCount = 12;
+        int colorAngleStep = 360 / 12;
+        int colors[] = new int[colorCount + 1];
+        float hsv[] = new float[] { 0f, 1f, 1f };
+        for (int i = 0; i < colors.length; i++) {
+            hsv[0] = (i * colorAngleStep + 180) % 360;
+            colors[i] = Color.HSVToColor(hsv);
+        }
+        colors[colorCount] = colors[0];
+
+        SweepGradient sweepGradient = new SweepGradient(radius, radius, colors, null);
+        RadialGradient radialGradient = new RadialGradient(radius, radius, radius, 0xFFFFFFFF, 0x00FFFFFF, TileMode.CLAMP);
+        ComposeShader composeShader = new ComposeShader(sweepGradient, radialGradient, PorterDuff.Mode.SRC_OVER);
+
+        Paint colorWheelPaint = new Paint();
+        colorWheelPaint.setAntiAlias(true);
+        colorWheelPaint.setDither(true);
+        colorWheelPaint.setShader(composeShader);
+
+        Canvas canvas = new Canvas(bitmap);
+        canvas.drawCircle(radius, radius, radius, colorWheelPaint);
+
+        return bitmap;
+
+    }
+
+    /**
+     * Loads a requested wheel in the background thread, progressively if it has to be drawn.
+     */
+    private static class ColorWheelRequest implements Callable<Bitmap> {
+
+        private final int diameter;
+        private final boolean software;
+        private final Callback callback;
+        private final Handler handler;
+        private FutureTask<Bitmap> task;
+
+        public ColorWheelRequest(int diameter, boolean software, Callback callback, Handler handler) {
+            this.diameter = diameter;
+            this.software = software;
+            this.callback = callback;
+            this.handler = handler;
+        }
+
+        @Override
+        public Bitmap call() {
+
+            if (diameter >= PREVIEW_MIN_DIAMETER && getCachedColorWheel(diameter, software) == null
+                    && findLargerLevel(diameter, software) == null) {
+                deliver(loadColorWheel(diameter / PREVIEW_FACTOR, software));
+            }
+            return loadColorWheel(diameter, software);
+
+        }
+
+        private void deliver(final Bitmap bitmap) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!task.isCancelled()) {
+                        callback.onColorWheelReady(bitmap);
+                    }
+                }
+            });
+        }
+
+    }
+
+    /**
+     * Forwards the memory warnings of the system, only registered from API 14 on.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private static class TrimCallbacks implements ComponentCallbacks2 {
+
+        @Override
+        public void onTrimMemory(int level) {
+            trimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            clear();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+
+    }
+
+}
@@ -16,22 +16,17 @@
 
 package com.chiralcode.colorpicker;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.ComposeShader;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Paint.Join;
 import android.graphics.Paint.Style;
 import android.graphics.Path;
-import android.graphics.PorterDuff;
-import android.graphics.RadialGradient;
+import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.Shader.TileMode;
 import android.graphics.SweepGradient;
 import android.os.Bundle;
 import android.os.Parcelable;
@@ -39,6 +34,8 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 
+import java.util.concurrent.Future;
+
 public class MultiColorPicker extends View {
 
     /**
@@ -52,13 +49,13 @@ public class MultiColorPicker extends View {
     private final int paramColorCount = 5;
     private final float paramHueSpreadAngle = 30f; // in degrees
 
-    private Paint colorWheelPaint;
     private Paint valueSliderPaint;
 
     private Paint colorViewPaint;
 
     private Paint colorPointerPaint;
     private RectF colorPointerCoords;
+    private Rect dirtyRect;
 
     private Paint valuePointerPaint;
     private Paint valuePointerArrowPaint;
@@ -71,6 +68,10 @@ public class MultiColorPicker extends View {
     private Path arrowPointerPath;
 
     private Bitmap colorWheelBitmap;
+    private boolean softwareWheel;
+    private Future<?> colorWheelRequest;
+    private RectF colorWheelRect;
+    private Paint placeholderPaint;
 
     private int valueSliderWidth;
     private int innerPadding;
@@ -83,9 +84,23 @@ public class MultiColorPicker extends View {
 
     private Matrix gradientRotationMatrix;
 
+    /** Scratch arrays reused by onDraw(), so drawing allocates nothing */
+    private float[] sliderHSV = new float[] { 0f, 0f, 1f };
+    private int[] sliderColors = new int[] { Color.BLACK, Color.WHITE, Color.WHITE };
+    private float[] pointerHSV = new float[] { 0f, 0f, 0f };
+
+    /** Color before the current touch event, to find out what it changed */
+    private float[] previousHSV = new float[3];
+
+    /** Hue and saturation of the value slider gradient; -1 forces a rebuild */
+    private float sliderHue = -1f;
+    private float sliderSaturation = -1f;
+
     /** Currently selected color */
     private float[] colorHSV = new float[] { 0f, 0f, 1f };
     private float[] adjacentHue = new float[paramColorCount];
+    private int[] segmentColors = new int[paramColorCount];
+    private float[] segmentHSV = new float[3];
 
     public MultiColorPicker(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
@@ -115,10 +130,6 @@ public class MultiColorPicker extends View {
 
         valuePointerArrowPaint = new Paint();
 
-        colorWheelPaint = new Paint();
-        colorWheelPaint.setAntiAlias(true);
-        colorWheelPaint.setDither(true);
-
         valueSliderPaint = new Paint();
         valueSliderPaint.setAntiAlias(true);
         valueSliderPaint.setDither(true);
@@ -132,8 +143,12 @@ public class MultiColorPicker extends View {
 
         outerWheelRect = new RectF();
         innerWheelRect = new RectF();
+        colorWheelRect = new RectF();
 
         colorPointerCoords = new RectF();
+        dirtyRect = new Rect();
+
+        placeholderPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     }
 
@@ -145,7 +160,6 @@ public class MultiColorPicker extends View {
         setMeasuredDimension(size, size);
     }
 
-    @SuppressLint("DrawAllocation")
     @Override
     protected void onDraw(Canvas canvas) {
 
@@ -154,11 +168,16 @@ public class MultiColorPicker extends View {
 
         // drawing color wheel
 
-        canvas.drawBitmap(colorWheelBitmap, centerX - colorWheelRadius, centerY - colorWheelRadius, null);
+        if (colorWheelBitmap.getWidth() == colorWheelRadius * 2) {
+            canvas.drawBitmap(colorWheelBitmap, centerX - colorWheelRadius, centerY - colorWheelRadius, null);
+        } else {
+            // placeholder or preview level, until the wheel drawn in the background is ready
+            canvas.drawBitmap(colorWheelBitmap, null, colorWheelRect, placeholderPaint);
+        }
 
         // drawing color view
 
-        int[] segmentColors = getColors();
+        updateSegmentColors();
         float sweepAngleStep = 180f / paramColorCount;
         for (int i = 0; i < paramColorCount; i++) {
 
@@ -172,13 +191,11 @@ public class MultiColorPicker extends View {
 
         }
 
-        // drawing value slider
-
-        float[] hsv = new float[] { colorHSV[0], colorHSV[1], 1f };
+        // drawing value slider, its gradient only depends on hue and saturation
 
-        SweepGradient sweepGradient = new SweepGradient(centerX, centerY, new int[] { Color.BLACK, Color.HSVToColor(hsv), Color.WHITE }, null);
-        sweepGradient.setLocalMatrix(gradientRotationMatrix);
-        valueSliderPaint.setShader(sweepGradient);
+        if (colorHSV[0] != sliderHue || colorHSV[1] != sliderSaturation) {
+            updateValueSliderShader(centerX, centerY);
+        }
 
         canvas.drawPath(valueSliderPath, valueSliderPaint);
 
@@ -190,7 +207,8 @@ public class MultiColorPicker extends View {
 
         // drawing value pointer
 
-        valuePointerPaint.setColor(Color.HSVToColor(new float[] { 0f, 0f, 1f - colorHSV[2] }));
+        pointerHSV[2] = 1f - colorHSV[2];
+        valuePointerPaint.setColor(Color.HSVToColor(pointerHSV));
 
         double valueAngle = (colorHSV[2] - 0.5f) * Math.PI;
         float valueAngleX = (float) Math.cos(valueAngle);
@@ -224,6 +242,21 @@ public class MultiColorPicker extends View {
 
     }
 
+    private void updateValueSliderShader(int centerX, int centerY) {
+
+        sliderHue = colorHSV[0];
+        sliderSaturation = colorHSV[1];
+        sliderHSV[0] = sliderHue;
+        sliderHSV[1] = sliderSaturation;
+        sliderColors[1] = Color.HSVToColor(sliderHSV);
+
+        // Shader colors can not be changed, so only a new hue or saturation creates a new one
+        SweepGradient sweepGradient = new SweepGradient(centerX, centerY, sliderColors, null);
+        sweepGradient.setLocalMatrix(gradientRotationMatrix);
+        valueSliderPaint.setShader(sweepGradient);
+
+    }
+
     private void drawPointerArrow(Canvas canvas) {
 
         int centerX = getWidth() / 2;
@@ -275,76 +308,129 @@ public class MultiColorPicker extends View {
         outerWheelRect.set(centerX - outerWheelRadius, centerY - outerWheelRadius, centerX + outerWheelRadius, centerY + outerWheelRadius);
         innerWheelRect.set(centerX - innerWheelRadius, centerY - innerWheelRadius, centerX + innerWheelRadius, centerY + innerWheelRadius);
 
-        colorWheelBitmap = createColorWheelBitmap(colorWheelRadius * 2, colorWheelRadius * 2);
+        colorWheelRect.set(centerX - colorWheelRadius, centerY - colorWheelRadius, centerX + colorWheelRadius, centerY + colorWheelRadius);
+        requestColorWheel();
 
         gradientRotationMatrix = new Matrix();
         gradientRotationMatrix.preRotate(270, width / 2, height / 2);
+        sliderHue = -1f; // the gradient is centered, rebuild it for the new size
 
         valueSliderPath.arcTo(outerWheelRect, 270, 180);
         valueSliderPath.arcTo(innerWheelRect, 90, -180);
 
     }
 
-    private Bitmap createColorWheelBitmap(int width, int height) {
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        int action = event.getAction();
+        switch (action) {
+        case MotionEvent.ACTION_DOWN:
+        case MotionEvent.ACTION_MOVE:
 
-        Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            System.arraycopy(colorHSV, 0, previousHSV, 0, 3);
+            dirtyRect.setEmpty();
+            unionPointerBounds(); // where the pointers were
 
-        int colorCount = 12;
-        int colorAngleStep = 360 / 12;
-        int colors[] = new int[colorCount + 1];
-        float hsv[] = new float[] { 0f, 1f, 1f };
-        for (int i = 0; i < colors.length; i++) {
-            hsv[0] = (i * colorAngleStep + 180) % 360;
-            colors[i] = Color.HSVToColor(hsv);
+            // Moves are batched into one event per frame, the latest sample on the wheel
+            // or the slider decides, so the color is computed once per frame
+            boolean hit = applyTouch(event.getX(), event.getY());
+            for (int i = event.getHistorySize() - 1; i >= 0 && !hit; i--) {
+                hit = applyTouch(event.getHistoricalX(i), event.getHistoricalY(i));
+            }
+
+            if (hit) {
+                updateAdjacentHue();
+            }
+
+            invalidateChanges();
+
+            return true;
         }
-        colors[colorCount] = colors[0];
+        return super.onTouchEvent(event);
+    }
+
+    /**
+     * Takes the color from a touch position, returns false if it is neither on the wheel nor on the slider.
+     */
+    private boolean applyTouch(float x, float y) {
 
-        SweepGradient sweepGradient = new SweepGradient(width / 2, height / 2, colors, null);
-        RadialGradient radialGradient = new RadialGradient(width / 2, height / 2, colorWheelRadius, 0xFFFFFFFF, 0x00FFFFFF, TileMode.CLAMP);
-        ComposeShader composeShader = new ComposeShader(sweepGradient, radialGradient, PorterDuff.Mode.SRC_OVER);
+        float cx = x - getWidth() / 2;
+        float cy = y - getHeight() / 2;
+        float d = (float) Math.sqrt(cx * cx + cy * cy);
 
-        colorWheelPaint.setShader(composeShader);
+        if (d <= colorWheelRadius) {
 
-        Canvas canvas = new Canvas(bitmap);
-        canvas.drawCircle(width / 2, height / 2, colorWheelRadius, colorWheelPaint);
+            colorHSV[0] = (float) (Math.toDegrees(Math.atan2(cy, cx)) + 180f);
+            colorHSV[1] = Math.max(0f, Math.min(1f, d / colorWheelRadius));
+            return true;
 
-        return bitmap;
+        } else if (x >= getWidth() / 2 && d >= innerWheelRadius) {
+
+            colorHSV[2] = (float) Math.max(0, Math.min(1, Math.atan2(cy, cx) / Math.PI + 0.5f));
+            return true;
+
+        }
+        return false;
 
     }
 
-    @Override
-    public boolean onTouchEvent(MotionEvent event) {
-        int action = event.getAction();
-        switch (action) {
-        case MotionEvent.ACTION_DOWN:
-        case MotionEvent.ACTION_MOVE:
+    /**
+     * Invalidates only what a touch changed: the old and new pointers, the color view
+     * and the value slider if its gradient changed. Nothing is redrawn if the touch changed nothing.
+     */
+    private void invalidateChanges() {
 
-            int x = (int) event.getX();
-            int y = (int) event.getY();
-            int cx = x - getWidth() / 2;
-            int cy = y - getHeight() / 2;
-            double d = Math.sqrt(cx * cx + cy * cy);
+        if (colorHSV[0] == previousHSV[0] && colorHSV[1] == previousHSV[1] && colorHSV[2] == previousHSV[2]) {
+            return;
+        }
 
-            if (d <= colorWheelRadius) {
+        int centerX = getWidth() / 2;
+        int centerY = getHeight() / 2;
 
-                colorHSV[0] = (float) (Math.toDegrees(Math.atan2(cy, cx)) + 180f);
-                colorHSV[1] = Math.max(0f, Math.min(1f, (float) (d / colorWheelRadius)));
+        unionPointerBounds();
+        // all segments of the color view follow hue, saturation and value
+        dirtyRect.union(centerX - outerWheelRadius - 1, centerY - outerWheelRadius - 1, centerX, centerY + outerWheelRadius + 1);
 
-                updateAdjacentHue();
-                invalidate();
+        if (colorHSV[0] != previousHSV[0] || colorHSV[1] != previousHSV[1]) {
+            // the value slider, its gradient follows hue and saturation
+            dirtyRect.union(centerX, centerY - outerWheelRadius - 1, centerX + outerWheelRadius + 1, centerY + outerWheelRadius + 1);
+        }
 
-            } else if (x >= getWidth() / 2 && d >= innerWheelRadius) {
+        invalidate(dirtyRect);
 
-                colorHSV[2] = (float) Math.max(0, Math.min(1, Math.atan2(cy, cx) / Math.PI + 0.5f));
+    }
 
-                updateAdjacentHue();
-                invalidate();
+    /**
+     * Adds the bounds of the color wheel pointer, the value pointer and the arrow to the dirty rect,
+     * as drawn by onDraw() for the current color.
+     */
+    private void unionPointerBounds() {
 
-            }
+        int centerX = getWidth() / 2;
+        int centerY = getHeight() / 2;
 
-            return true;
+        float pointerRadius = 0.075f * colorWheelRadius;
+        for (int i = 0; i < paramColorCount; i++) {
+            float hueAngle = (float) Math.toRadians(adjacentHue[i]);
+            int pointerX = (int) ((int) (-Math.cos(hueAngle) * colorHSV[1] * colorWheelRadius) + centerX - pointerRadius / 2);
+            int pointerY = (int) ((int) (-Math.sin(hueAngle) * colorHSV[1] * colorWheelRadius) + centerY - pointerRadius / 2);
+            dirtyRect.union(pointerX - 2, pointerY - 2, (int) (pointerX + pointerRadius) + 3, (int) (pointerY + pointerRadius) + 3);
         }
-        return super.onTouchEvent(event);
+
+        // the value pointer and the arrow lie on one ray, the arrow spreads by PI / 96 to both sides
+        double valueAngle = (colorHSV[2] - 0.5f) * Math.PI;
+        float valueAngleX = (float) Math.cos(valueAngle);
+        float valueAngleY = (float) Math.sin(valueAngle);
+        int arrowRadius = outerWheelRadius + arrowPointerSize;
+        int margin = (int) (arrowRadius * Math.PI / 96) + 2;
+
+        float innerX = valueAngleX * innerWheelRadius + centerX;
+        float innerY = valueAngleY * innerWheelRadius + centerY;
+        float outerX = valueAngleX * arrowRadius + centerX;
+        float outerY = valueAngleY * arrowRadius + centerY;
+        dirtyRect.union((int) Math.min(innerX, outerX) - margin, (int) Math.min(innerY, outerY) - margin, (int) Math.max(innerX, outerX) + margin + 1,
+                (int) Math.max(innerY, outerY) + margin + 1);
+
     }
 
     private void updateAdjacentHue() {
@@ -362,20 +448,87 @@ public class MultiColorPicker extends View {
         updateAdjacentHue();
     }
 
+    /**
+     * Selects how the color wheel is drawn: with shaders through Canvas (default)
+     * or in pure Java by the ColorWheelRasterizer, which is faster at high resolutions.
+     */
+    public void setSoftwareWheel(boolean softwareWheel) {
+        this.softwareWheel = softwareWheel;
+        if (colorWheelRadius > 0) {
+            requestColorWheel();
+            invalidate();
+        }
+    }
+
+    /**
+     * Takes the wheel from the cache, or shows a placeholder and has the wheel drawn
+     * in the background. A request for a previous size is cancelled.
+     */
+    private void requestColorWheel() {
+
+        if (colorWheelRequest != null) {
+            colorWheelRequest.cancel(false);
+            colorWheelRequest = null;
+        }
+
+        final int diameter = colorWheelRadius * 2;
+        final boolean software = softwareWheel;
+
+        colorWheelBitmap = ColorWheelCache.getCachedColorWheel(diameter, software);
+        if (colorWheelBitmap != null) {
+            return;
+        }
+        colorWheelBitmap = ColorWheelCache.getPlaceholder();
+
+        colorWheelRequest = ColorWheelCache.requestColorWheel(getContext(), diameter, software, new ColorWheelCache.Callback() {
+            @Override
+            public void onColorWheelReady(Bitmap bitmap) {
+                if (diameter != colorWheelRadius * 2 || software != softwareWheel) {
+                    return; // the size changed while it was being drawn
+                }
+                colorWheelBitmap = bitmap;
+                if (bitmap.getWidth() == diameter) {
+                    colorWheelRequest = null; // otherwise a preview level, the full one follows
+                }
+                invalidate();
+            }
+        });
+
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (colorWheelBitmap != null && colorWheelBitmap.getWidth() != colorWheelRadius * 2) {
+            requestColorWheel(); // the request was cancelled when detached
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (colorWheelRequest != null) {
+            colorWheelRequest.cancel(false);
+            colorWheelRequest = null;
+        }
+    }
+
     public int getColor() {
         return Color.HSVToColor(colorHSV);
     }
 
     public int[] getColors() {
-        int[] colors = new int[paramColorCount];
-        float[] hsv = new float[3];
+        updateSegmentColors();
+        return segmentColors.clone();
+    }
+
+    private void updateSegmentColors() {
         for (int i = 0; i < paramColorCount; i++) {
-            hsv[0] = adjacentHue[i];
-            hsv[1] = colorHSV[1];
-            hsv[2] = colorHSV[2];
-            colors[i] = Color.HSVToColor(hsv);
+            segmentHSV[0] = adjacentHue[i];
+            segmentHSV[1] = colorHSV[1];
+            segmentHSV[2] = colorHSV[2];
+            segmentColors[i] = Color.HSVToColor(segmentHSV);
         }
-        return colors;
     }
 
     @Override
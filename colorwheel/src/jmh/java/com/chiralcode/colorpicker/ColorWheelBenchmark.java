@@ -0,0 +1,111 @@
+package com.chiralcode.colorpicker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the time to compute the pixels of the color wheel of the ColorPicker.
+ * <br>
+ * The ColorWheelRasterizer with its hue table, on one thread and on all processors,
+ * is compared with a straightforward per pixel HSV to RGB conversion,
+ * like Color.HSVToColor() does it for every pixel.
+ * <br> <br>
+ * <i>Notes:<br>
+ * The shaders drawn through the Canvas of Android can not run on a desktop Java VM,
+ * the per pixel conversion stands in for them as reference.
+ * The diameters are typical for the wheel in a ColorPickerDialog on hdpi and xxhdpi screens.</i>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ColorWheelBenchmark {
+
+    /** Size of the wheel in pixels */                       @Param({"300", "800"}) int diameter;
+
+
+    /**
+     * Converts each pixel from HSV to RGB.
+     * @return the pixels
+     */
+    @Benchmark
+    public int[] perPixelHsv() {
+        int[] pixels = new int[diameter * diameter];
+        float radius = diameter / 2f;
+        float[] hsv = new float[3];
+        for (int y = 0; y < diameter; y++) {
+            float dy = y + 0.5f - radius;
+            for (int x = 0; x < diameter; x++) {
+                float dx = x + 0.5f - radius;
+                float d = (float) Math.sqrt(dx * dx + dy * dy);
+                if (d >= radius + 0.5f) {
+                    continue;
+                }
+                hsv[0] = (float) (Math.toDegrees(Math.atan2(dy, dx)) + 180.0);
+                hsv[1] = Math.min(1f, d / radius);
+                hsv[2] = 1f;
+                pixels[y * diameter + x] = hsvToColor(hsv);
+            }
+        }
+        return pixels;
+    }
+
+
+    /**
+     * Computes the wheel with the hue table on one thread.
+     * @return the pixels
+     */
+    @Benchmark
+    public int[] rasterizerSingleThread() {
+        return ColorWheelRasterizer.render(diameter, 1);
+    }
+
+
+    /**
+     * Computes the wheel with the hue table, one band of rows per processor.
+     * @return the pixels
+     */
+    @Benchmark
+    public int[] rasterizerParallel() {
+        return ColorWheelRasterizer.render(diameter);
+    }
+
+
+    /**
+     * Converts a color from HSV to opaque ARGB, the textbook way.
+     * @param hsv hue 0 ... 360, saturation and value 0 ... 1
+     * @return the color
+     */
+    private static int hsvToColor(float[] hsv) {
+        float h = (hsv[0] % 360f) / 60f;
+        int sector = (int) h;
+        float f = h - sector;
+        float v = hsv[2] * 255f;
+        float p = v * (1f - hsv[1]);
+        float q = v * (1f - hsv[1] * f);
+        float t = v * (1f - hsv[1] * (1f - f));
+        float r, g, b;
+        switch (sector) {
+            case 0:  r = v; g = t; b = p; break;
+            case 1:  r = q; g = v; b = p; break;
+            case 2:  r = p; g = v; b = t; break;
+            case 3:  r = p; g = q; b = v; break;
+            case 4:  r = t; g = p; b = v; break;
+            default: r = v; g = p; b = q; break;
+        }
+        return 0xFF000000 | (Math.round(r) << 16) | (Math.round(g) << 8) | Math.round(b);
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 Piotr Adamus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.chiralcode.colorpicker;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Computes the pixels of the color wheel in pure Java, without Canvas and shaders.
+ *
+ * The result matches the shader version: the hue follows the angle around the center,
+ * starting with cyan (180 degrees) on the right, and the saturation grows from white
+ * in the center to the full hue at the rim, with an anti-aliased edge.
+ *
+ * The fully saturated hues are looked up in a table with 256 steps per sixth of the circle,
+ * the exact resolution of 8 bit channels, so no HSV conversion runs per pixel.
+ * The angle is approximated by a polynomial instead of Math.atan2(), its error is far below
+ * one step of the table.
+ * The rows of large wheels are split into bands which are computed by several threads:
+ * the calling thread and the threads of a shared pool, which are started once and then reused.
+ * Small wheels, e.g. a placeholder, are computed by the calling thread alone.
+ *
+ * This class has no Android dependencies and can be benchmarked on a desktop Java VM.
+ */
+public final class ColorWheelRasterizer {
+
+    private static final int HUE_STEPS = 6 * 256;
+    private static final int[] hueTable = createHueTable();
+
+    private static final int PARALLEL_MIN_DIAMETER = 256; // smaller wheels are not worth a thread handoff
+    private static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, PROCESSORS - 1), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "ColorWheelRasterizer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private ColorWheelRasterizer() {
+    }
+
+    /**
+     * Computes the wheel with one band of rows per available processor,
+     * or on the calling thread only if the wheel is small.
+     * Returns non-premultiplied ARGB pixels, row by row, as expected by Bitmap.setPixels().
+     */
+    public static int[] render(int diameter) {
+        return render(diameter, diameter < PARALLEL_MIN_DIAMETER ? 1 : PROCESSORS);
+    }
+
+    /**
+     * Computes the wheel with a given number of bands, the first one on the calling thread,
+     * the others on the shared pool.
+     */
+    public static int[] render(final int diameter, int threadCount) {
+
+        final int[] pixels = new int[diameter * diameter];
+        int bands = Math.max(1, Math.min(threadCount, diameter));
+        int rowsPerBand = (diameter + bands - 1) / bands;
+
+        Future<?>[] workers = new Future<?>[bands - 1];
+        for (int i = 0; i < workers.length; i++) {
+            final int firstRow = (i + 1) * rowsPerBand;
+            final int endRow = Math.min(diameter, firstRow + rowsPerBand);
+            workers[i] = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    renderRows(pixels, diameter, firstRow, endRow);
+                }
+            });
+        }
+        renderRows(pixels, diameter, 0, Math.min(diameter, rowsPerBand));
+
+        boolean interrupted = false;
+        for (Future<?> worker : workers) {
+            while (true) {
+                try {
+                    worker.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true; // the pixels are needed anyway, finish first
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause(); // a Runnable only throws unchecked
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    throw (Error) cause; // e.g. out of memory
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return pixels;
+
+    }
+
+    /**
+     * Computes the rows firstRow until endRow (exclusive) of the wheel.
+     */
+    public static void renderRows(int[] pixels, int diameter, int firstRow, int endRow) {
+
+        float radius = diameter / 2f;
+        float edge = radius + 0.5f;
+        float hueScale = (float) (HUE_STEPS / (2 * Math.PI));
+        float hueOffset = (float) Math.PI;
+
+        for (int y = firstRow; y < endRow; y++) {
+            float dy = y + 0.5f - radius;
+            int offset = y * diameter;
+            for (int x = 0; x < diameter; x++) {
+
+                float dx = x + 0.5f - radius;
+                float d = (float) Math.sqrt(dx * dx + dy * dy);
+                if (d >= edge) {
+                    pixels[offset + x] = 0;
+                    continue;
+                }
+
+                int hueIndex = (int) ((atan2(dy, dx) + hueOffset) * hueScale);
+                int hue = hueTable[hueIndex < HUE_STEPS ? hueIndex : 0];
+                int saturation = d >= radius ? 256 : (int) (d * 256 / radius);
+                int alpha = d <= radius - 0.5f ? 255 : (int) ((edge - d) * 255);
+
+                int red = 255 - (((255 - ((hue >> 16) & 0xFF)) * saturation) >> 8);
+                int green = 255 - (((255 - ((hue >> 8) & 0xFF)) * saturation) >> 8);
+                int blue = 255 - (((255 - (hue & 0xFF)) * saturation) >> 8);
+                pixels[offset + x] = (alpha << 24) | (red << 16) | (green << 8) | blue;
+
+            }
+        }
+
+    }
+
+    /**
+     * Approximates Math.atan2() with a maximum error of about 1e-5 radians.
+     */
+    private static float atan2(float y, float x) {
+
+        float ax = Math.abs(x);
+        float ay = Math.abs(y);
+        if (ax == 0f && ay == 0f) {
+            return 0f;
+        }
+        boolean steep = ay > ax;
+        float z = steep ? ax / ay : ay / ax; // 0 ... 1
+        float z2 = z * z;
+        float angle = z * (0.99997726f + z2 * (-0.33262347f + z2 * (0.19354346f + z2 * (-0.11643287f + z2 * (0.05265332f - 0.01172120f * z2)))));
+        if (steep) {
+            angle = (float) (Math.PI / 2) - angle;
+        }
+        if (x < 0f) {
+            angle = (float) Math.PI - angle;
+        }
+        return y < 0f ? -angle : angle;
+
+    }
+
+    /**
+     * The fully saturated color of each hue step, the index 0 is the hue on the left (0 degrees),
+     * as the wheel starts with hue 180 on the right.
+     */
+    private static int[] createHueTable() {
+
+        int[] table = new int[HUE_STEPS];
+        for (int i = 0; i < HUE_STEPS; i++) {
+            int sector = i / 256;
+            int rising = i % 256;
+            int falling = 255 - rising;
+            int red, green, blue;
+            switch (sector) {
+            case 0:  red = 255;     green = rising;  blue = 0;       break;
+            case 1:  red = falling; green = 255;     blue = 0;       break;
+            case 2:  red = 0;       green = 255;     blue = rising;  break;
+            case 3:  red = 0;       green = falling; blue = 255;     break;
+            case 4:  red = rising;  green = 0;       blue = 255;     break;
+            default: red = 255;     green = 0;       blue = falling; break;
+            }
+            table[i] = (red << 16) | (green << 8) | blue;
+        }
+        return table;
+
+    }
+
+}
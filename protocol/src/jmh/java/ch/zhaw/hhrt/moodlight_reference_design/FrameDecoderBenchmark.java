@@ -0,0 +1,132 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the receive path: frames decoded per second and bytes allocated per frame.
+ * <br>
+ * A stream of typical Moodlight replies is decoded in chunks,
+ * like the chunks returned by read() of the Bluetooth socket.
+ * One operation is one decoded frame, so the score is in frames per second.
+ * <br> <br>
+ * <i>Notes:<br>
+ * The bytes allocated per frame are reported by the gc profiler as gc.alloc.rate.norm,
+ * the value should be 0.</i>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    /** Frames in the decoded stream */                      static final int FRAMES = 1000;
+
+    /** Bytes per call of decode() */                        @Param({"1", "16", "256"}) int chunkSize;
+    /** Replies are sent as BinaryFrames */                  @Param({"false", "true"}) boolean binary;
+
+    /** Received bytes holding FRAMES frames */              byte[] stream;
+    /** Decoder under test */                                FrameDecoder decoder;
+    /** Sum of the decoded values, keeps them alive */       int checksum;
+
+
+    /**
+     * Builds the stream of replies and the decoder.
+     */
+    @Setup
+    public void setUp() {
+        String[] replies = {
+                "red 123", "green 45", "blue 255", "white 0",
+                "color 255 128 0 255", "idle", "unknown reply"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < FRAMES; i++) {
+            text.append(replies[i % replies.length]).append('\r');
+        }
+        stream = binary ? binaryStream() : text.toString().getBytes();
+        CommandTable commands = new CommandTable(
+                new String[]{"white", "red", "green", "blue", "idle", "color"});
+        decoder = new FrameDecoder((byte) '\r', commands, 256, new FrameDecoder.Listener() {
+            public void onFrame(int commandId, int valueCount, int[] values) {
+                checksum += commandId;
+                for (int i = 0; i < valueCount; i++) {
+                    checksum += values[i];
+                }
+            }
+
+            public void onFrameOverflow(int overflowCount) {
+                throw new IllegalStateException("No frame should overflow");
+            }
+
+            public void onChecksumError(int errorCount) {
+                throw new IllegalStateException("No checksum should be wrong");
+            }
+        });
+        decoder.setBinary(binary);
+    }
+
+
+    /**
+     * Builds the binary counterpart of the replies, "idle" stays a text frame.
+     * @return FRAMES binary and text frames
+     */
+    private static byte[] binaryStream() {
+        byte[] idle = "idle\r".getBytes();
+        byte[] stream = new byte[FRAMES * Math.max(BinaryFrames.MAX_FRAME_SIZE, idle.length)];
+        byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+        int length = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            int frameLength;
+            switch (i % 5) {
+                case 0:
+                    frameLength = BinaryFrames.encodeChannel(Command.RED, 123, frame);
+                    break;
+                case 1:
+                    frameLength = BinaryFrames.encodeChannel(Command.GREEN, 45, frame);
+                    break;
+                case 2:
+                    frameLength = BinaryFrames.encodeChannel(Command.BLUE, 255, frame);
+                    break;
+                case 3:
+                    frameLength = BinaryFrames.encodeColor(new int[]{255, 128, 0, 255}, frame);
+                    break;
+                default:
+                    System.arraycopy(idle, 0, frame, 0, idle.length);
+                    frameLength = idle.length;
+                    break;
+            }
+            System.arraycopy(frame, 0, stream, length, frameLength);
+            length += frameLength;
+        }
+        return Arrays.copyOf(stream, length);
+    }
+
+
+    /**
+     * Decodes the whole stream.
+     * @return checksum of the decoded frames
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decode() {
+        for (int offset = 0; offset < stream.length; offset += chunkSize) {
+            decoder.decode(stream, offset, Math.min(chunkSize, stream.length - offset));
+        }
+        return checksum;
+    }
+}
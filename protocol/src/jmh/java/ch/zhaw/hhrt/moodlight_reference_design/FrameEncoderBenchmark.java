@@ -0,0 +1,90 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Measures the send path: frames built per second and bytes allocated per frame.
+ * <br>
+ * The channel and color frames of the TransmitQueue are compared
+ * with a free text command, which is built with Strings like sendData() did before.
+ * One operation is one built frame, so the score is in frames per second.
+ * <br> <br>
+ * <i>Notes:<br>
+ * The bytes allocated per frame are reported by the gc profiler as gc.alloc.rate.norm,
+ * the value should be 0 for the channel and color frames.</i>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncoderBenchmark {
+
+    /** Channel and color frames are binary */               @Param({"false", "true"}) boolean binary;
+
+    /** Encoder under test */                                FrameEncoder encoder;
+    /** Buffer for the frames */                             byte[] frame;
+    /** Color of the batched frame */                        int[] color;
+    /** Changes the values from frame to frame */            int value;
+
+
+    /**
+     * Builds the encoder.
+     */
+    @Setup
+    public void setUp() {
+        encoder = new FrameEncoder((byte) '\r',
+                new String[]{"white", "red", "green", "blue"}, "color");
+        encoder.setBinary(binary);
+        frame = new byte[encoder.getMaxFrameSize()];
+        color = new int[]{255, 128, 0, 255};
+    }
+
+
+    /**
+     * Builds the frame of a channel value, e.g. "red 123\r" or 4 binary bytes.
+     * @return length of the frame
+     */
+    @Benchmark
+    public int encodeChannel() {
+        value = (value + 1) & 0xFF;
+        return encoder.encodeChannel(Command.RED, value, frame);
+    }
+
+
+    /**
+     * Builds the batched color frame, e.g. "color 255 128 0 255\r".
+     * @return length of the frame
+     */
+    @Benchmark
+    public int encodeColor() {
+        value = (value + 1) & 0xFF;
+        color[1] = value;
+        return encoder.encodeColor(color, frame);
+    }
+
+
+    /**
+     * Builds a free text command with Strings.
+     * @return the frame
+     */
+    @Benchmark
+    public byte[] encodeCommand() {
+        value = (value + 1) & 0xFF;
+        return encoder.encodeCommand("red " + value);
+    }
+}
@@ -0,0 +1,136 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Compact binary frames, an alternative to the text frames like "red 255\r".
+ * <br>
+ * A binary frame starts with an opcode byte, followed by a fixed number of bytes
+ * depending on the opcode and a CRC8 checksum:
+ * <ul>
+ *     <li>CHANNEL: opcode, channel, value, CRC8, e.g. "red 255"</li>
+ *     <li>COLOR: opcode, red, green, blue, white, CRC8, e.g. "color 255 128 0 255"</li>
+ * </ul>
+ * Thus a channel value needs 4 bytes instead of 6 to 8 bytes and no charset encoding.
+ * Questions and the idle command are rare, they are always sent as text frames.
+ * <br>
+ * The opcodes have the highest bit set, text frames only use 7 bit ASCII characters.
+ * So the receiver can tell binary and text frames apart by the first byte
+ * and both kinds of frames can be mixed on the same link.
+ * Both sides only send binary frames after negotiating it with "binary ?" and "binary 1".
+ * <br> <br>
+ * <i>Notes:<br>
+ * - Values are limited to 0 ... 255, one byte each.<br>
+ * - The CRC8 uses the polynomial x^8 + x^2 + x + 1 (0x07) with initial value 0
+ *   over the opcode and the payload.</i>
+ */
+public final class BinaryFrames {
+
+    /** Set or report a channel value */                     public static final int CHANNEL = 0x81;
+    /** Set or report all channels */                        public static final int COLOR = 0x82;
+    /** Bytes of the longest frame */                        public static final int MAX_FRAME_SIZE = 6;
+
+    /** CRC8 of each byte value */                           private static final byte[] CRC_TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            CRC_TABLE[i] = (byte) crc;
+        }
+    }
+
+
+    /**
+     * No instances, this class only holds static methods.
+     */
+    private BinaryFrames() {
+    }
+
+
+    /**
+     * Returns the length of a frame including opcode and checksum.
+     * @param opcode first byte of the frame
+     * @return length in bytes or 0 if the byte is no opcode
+     */
+    public static int frameLength(int opcode) {
+        switch (opcode & 0xFF) {
+            case CHANNEL:
+                return 4;
+            case COLOR:
+                return 6;
+            default:
+                return 0;
+        }
+    }
+
+
+    /**
+     * Calculates the CRC8 checksum.
+     * @param data   bytes to be checked
+     * @param offset of the first byte
+     * @param length number of bytes
+     * @return the checksum
+     */
+    public static byte crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return (byte) crc;
+    }
+
+
+    /**
+     * Checks the checksum of a complete frame.
+     * @param frame  starting with the opcode
+     * @param length of the frame including the checksum
+     * @return true if the checksum is correct
+     */
+    public static boolean isValid(byte[] frame, int length) {
+        return crc8(frame, 0, length - 1) == frame[length - 1];
+    }
+
+
+    /**
+     * Builds the frame of a channel value.
+     * @param channel Command channel id
+     * @param value   0 ... 255
+     * @param frame   buffer of at least MAX_FRAME_SIZE bytes
+     * @return length of the frame
+     */
+    public static int encodeChannel(int channel, int value, byte[] frame) {
+        frame[0] = (byte) CHANNEL;
+        frame[1] = (byte) channel;
+        frame[2] = (byte) value;
+        return seal(frame, 3);
+    }
+
+
+    /**
+     * Builds the frame of all channels.
+     * @param color red, green, blue and white, 0 ... 255 each
+     * @param frame buffer of at least MAX_FRAME_SIZE bytes
+     * @return length of the frame
+     */
+    public static int encodeColor(int[] color, byte[] frame) {
+        frame[0] = (byte) COLOR;
+        for (int i = 0; i < 4; i++) {
+            frame[1 + i] = (byte) color[i];
+        }
+        return seal(frame, 5);
+    }
+
+
+    /**
+     * Appends the checksum.
+     * @param frame  holding opcode and payload
+     * @param length of opcode and payload
+     * @return length of the frame including the checksum
+     */
+    private static int seal(byte[] frame, int length) {
+        frame[length] = crc8(frame, 0, length);
+        return length + 1;
+    }
+}
@@ -0,0 +1,33 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Identifiers of the commands understood by the Moodlight.
+ * <br>
+ * The color channels are numbered from 0 to CHANNEL_COUNT - 1,
+ * so they can be used directly as index into arrays.
+ * <br> <br>
+ * <i>Notes:<br>
+ * Plain int constants are used instead of an enum
+ * to save memory and allocations on the smartphone.</i>
+ */
+public final class Command {
+
+    /** White channel */                                    public static final int WHITE = 0;
+    /** Red channel */                                      public static final int RED = 1;
+    /** Green channel */                                    public static final int GREEN = 2;
+    /** Blue channel */                                     public static final int BLUE = 3;
+    /** Number of color channels */                         public static final int CHANNEL_COUNT = 4;
+
+    /** Set the Moodlight back to idle mode */              public static final int IDLE = 4;
+    /** Set all channels with one frame, if supported */    public static final int COLOR = 5;
+    /** Negotiate the binary frames, if supported */        public static final int BINARY = 6;
+    /** Command not known by the app */                     public static final int UNKNOWN = -1;
+
+
+    /**
+     * No instances, this class only holds constants.
+     */
+    private Command() {
+    }
+}
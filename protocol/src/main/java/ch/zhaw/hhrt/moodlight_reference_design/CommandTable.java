@@ -0,0 +1,102 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Hash table mapping the received command words to Command ids.
+ * <br>
+ * The table is built once from the command labels.
+ * A lookup hashes the bytes of the received word and compares only with the one label
+ * found in the table, instead of comparing with every label one after the other.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - Commands are not case sensitive, they are stored and hashed in lower case.<br>
+ * - Open addressing with linear probing is used, so no objects are created for a lookup.</i>
+ */
+public class CommandTable {
+
+    /** Command labels, indexed by Command id */             private final String[] labels;
+    /** Labels as lower case bytes, indexed by Command id */ private final byte[][] commands;
+    /** Command id per hash slot, -1 = empty */              private final int[] slots;
+    /** Number of slots minus one */                         private final int mask;
+
+
+    /**
+     * Builds the table.
+     * @param labels the known commands, indexed by the Command ids
+     */
+    public CommandTable(String[] labels) {
+        this.labels = labels.clone();
+        commands = new byte[labels.length][];
+        int size = 4;
+        while (size < labels.length * 4) {      // Keep the table sparse, probes stay short
+            size <<= 1;
+        }
+        slots = new int[size];
+        mask = size - 1;
+        for (int slot = 0; slot < size; slot++) {
+            slots[slot] = -1;
+        }
+        for (int id = 0; id < labels.length; id++) {
+            commands[id] = labels[id].toLowerCase().getBytes();
+            int hash = 0;
+            for (byte b : commands[id]) {
+                hash = 31 * hash + b;
+            }
+            int slot = hash & mask;
+            while (slots[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+
+    /**
+     * Returns the label of a command.
+     * @param commandId Command id
+     * @return the label as defined in the resources
+     */
+    public String getLabel(int commandId) {
+        return labels[commandId];
+    }
+
+
+    /**
+     * Looks up a word of the current frame, not case sensitive.
+     * @param frame holding the received bytes
+     * @param start position of the first byte of the word in the frame
+     * @param end   position after the last byte of the word
+     * @return Command id or Command.UNKNOWN
+     */
+    public int find(FrameAccumulator frame, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + toLowerCase(frame.byteAt(i));
+        }
+        int length = end - start;
+        for (int slot = hash & mask; slots[slot] >= 0; slot = (slot + 1) & mask) {
+            byte[] command = commands[slots[slot]];
+            if (command.length != length) {
+                continue;
+            }
+            int i = 0;
+            while (i < length && toLowerCase(frame.byteAt(start + i)) == command[i]) {
+                i++;
+            }
+            if (i == length) {
+                return slots[slot];
+            }
+        }
+        return Command.UNKNOWN;
+    }
+
+
+    /**
+     * Converts an ASCII letter to lower case.
+     * @param b character
+     * @return the lower case letter or the unchanged character
+     */
+    private static byte toLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+}
@@ -0,0 +1,148 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Bounds-safe ring buffer collecting the bytes of the frame currently being received.
+ * <br>
+ * The buffer starts small and grows when a longer frame arrives, up to a maximum frame size.
+ * Bytes of a frame exceeding the maximum size are discarded and the frame is marked as overflowed.
+ * The overflowed frame is dropped by the decoder when its delimiter arrives,
+ * which resynchronizes the reception with the next frame.
+ * Thus a device which never sends the delimiter, or a corrupted burst,
+ * can not tear down the reception.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - The capacity is always a power of two, so positions wrap around with a simple mask.<br>
+ * - This class is not thread safe, it is meant to be used by the receiving thread only.</i>
+ */
+public class FrameAccumulator {
+
+    /** Ring buffer for the received bytes */                private byte[] ring;
+    /** Capacity of the ring buffer minus one */             private int mask;
+    /** Maximum number of bytes in one frame */              private final int maxFrameSize;
+    /** Position of the first byte of the current frame */   private int frameStart;
+    /** Number of bytes in the current frame */              private int frameLength;
+    /** Current frame exceeded the maximum size */           private boolean overflowed;
+    /** Number of frames dropped because of overflow */      private int overflowCount;
+
+
+    /**
+     * Creates a new accumulator.
+     * @param initialCapacity bytes allocated at the beginning, rounded up to a power of two
+     * @param maxFrameSize    maximum number of bytes in one frame, without delimiter
+     */
+    public FrameAccumulator(int initialCapacity, int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        ring = new byte[powerOfTwo(Math.min(initialCapacity, maxFrameSize))];
+        mask = ring.length - 1;
+    }
+
+
+    /**
+     * Appends a byte to the current frame. Grows the buffer if necessary.
+     * @param b received byte
+     * @return false if the frame is too long and the byte was discarded
+     */
+    public boolean append(byte b) {
+        if (frameLength >= maxFrameSize) {
+            if (!overflowed) {
+                overflowed = true;
+                overflowCount++;
+            }
+            return false;
+        }
+        if (frameLength == ring.length) {
+            grow();
+        }
+        ring[(frameStart + frameLength) & mask] = b;
+        frameLength++;
+        return true;
+    }
+
+
+    /**
+     * Returns a byte of the current frame.
+     * @param index of the byte, from 0 to length() - 1
+     * @return the byte
+     */
+    public byte byteAt(int index) {
+        return ring[(frameStart + index) & mask];
+    }
+
+
+    /**
+     * Returns the number of bytes in the current frame.
+     * @return number of stored bytes
+     */
+    public int length() {
+        return frameLength;
+    }
+
+
+    /**
+     * Tells if the current frame exceeded the maximum frame size.
+     * <br>An overflowed frame is incomplete and must be dropped.
+     * @return true if bytes of the current frame were discarded
+     */
+    public boolean isOverflowed() {
+        return overflowed;
+    }
+
+
+    /**
+     * Returns the number of frames which exceeded the maximum frame size.
+     * @return number of overflowed frames since the accumulator was created
+     */
+    public int getOverflowCount() {
+        return overflowCount;
+    }
+
+
+    /**
+     * Ends the current frame and starts the next one.
+     * <br>The bytes of the ended frame stay in the buffer until they are overwritten.
+     */
+    public void endFrame() {
+        frameStart = (frameStart + frameLength) & mask;
+        frameLength = 0;
+        overflowed = false;
+    }
+
+
+    /**
+     * Discards the current frame, e.g. after a new connection was opened.
+     */
+    public void reset() {
+        frameStart = 0;
+        frameLength = 0;
+        overflowed = false;
+    }
+
+
+    /**
+     * Doubles the capacity and moves the current frame to the beginning of the new buffer.
+     */
+    private void grow() {
+        byte[] bigger = new byte[ring.length * 2];
+        for (int i = 0; i < frameLength; i++) {
+            bigger[i] = byteAt(i);
+        }
+        ring = bigger;
+        mask = ring.length - 1;
+        frameStart = 0;
+    }
+
+
+    /**
+     * Rounds up to the next power of two.
+     * @param n a positive number
+     * @return smallest power of two not less than n
+     */
+    private static int powerOfTwo(int n) {
+        int power = 1;
+        while (power < n) {
+            power <<= 1;
+        }
+        return power;
+    }
+}
@@ -0,0 +1,256 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Streaming decoder for the frames received from the Moodlight.
+ * <br>
+ * A frame looks like "command value" followed by the delimiter character, e.g. "red 123\r".
+ * The received bytes are stored in the ring buffer of a FrameAccumulator.
+ * When the delimiter arrives, the frame is parsed directly from the ring buffer
+ * into a command id and int values, which are handed to the listener.
+ * Frames exceeding the maximum frame size are dropped, the decoder resynchronizes
+ * on the next delimiter.
+ * <br>
+ * After binary frames were negotiated, see setBinary(), compact binary frames,
+ * see BinaryFrames, are recognized by their first byte and handed to the listener
+ * the same way as the text frames. Binary frames with a wrong checksum are dropped.
+ * Before, every byte belongs to a text frame, so line noise can not swallow a delimiter.
+ * <br>
+ * No Strings, no regular expressions and no objects are created while decoding,
+ * so the receive path produces no garbage on smartphones with limited resources.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - Commands are not case sensitive.<br>
+ * - Words which are not numbers, e.g. the "?" of a question, end the list of values.<br>
+ * - This class is not thread safe, it is meant to be used by the receiving thread only.</i>
+ */
+public class FrameDecoder {
+
+
+    /**
+     * Callback for decoded frames.
+     * <br>It is called from the thread calling decode().
+     */
+    public interface Listener {
+        /**
+         * Called for each received frame.
+         * @param commandId  Command id of the first word or Command.UNKNOWN
+         * @param valueCount number of values following the command, 0 if there are none
+         * @param values     the values, only valid during this call because the array is reused
+         */
+        void onFrame(int commandId, int valueCount, int[] values);
+
+        /**
+         * Called when a frame was dropped because it exceeded the maximum frame size.
+         * @param overflowCount number of dropped frames since the decoder was created
+         */
+        void onFrameOverflow(int overflowCount);
+
+        /**
+         * Called when a binary frame was dropped because of a wrong checksum.
+         * @param errorCount number of dropped binary frames since the decoder was created
+         */
+        void onChecksumError(int errorCount);
+    }
+
+
+    /** Maximum number of values in one frame */             public static final int MAX_VALUES = 4;
+
+    /** Bytes allocated for the ring buffer at the start */  private static final int INITIAL_CAPACITY = 64;
+
+    /** Delimiter character at the end of a frame */         private final byte delimiter;
+    /** Maps the command words to Command ids */             private final CommandTable commands;
+    /** Gets the decoded frames */                           private final Listener listener;
+
+    /** Collects the bytes of the current frame */           private final FrameAccumulator frame;
+    /** Values of the frame, reused for every frame */       private final int[] values;
+
+    /** Bytes of the current binary frame */                 private final byte[] binaryFrame;
+    /** Bytes of the binary frame received so far */         private int binaryLength;
+    /** Length of the binary frame, 0 = none */              private int binaryExpected;
+    /** Binary frames with a wrong checksum */               private int checksumErrors;
+    /** Binary frames are recognized */                      private volatile boolean binary;
+
+
+    /**
+     * Creates a new decoder.
+     * @param delimiter    character at the end of every frame
+     * @param commands     table of the known commands
+     * @param maxFrameSize maximum number of bytes in one frame, longer frames are dropped
+     * @param listener     gets the decoded frames
+     */
+    public FrameDecoder(byte delimiter, CommandTable commands, int maxFrameSize,
+                        Listener listener) {
+        this.delimiter = delimiter;
+        this.listener = listener;
+        this.commands = commands;
+        frame = new FrameAccumulator(INITIAL_CAPACITY, maxFrameSize);
+        values = new int[MAX_VALUES];
+        binaryFrame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+    }
+
+
+    /**
+     * Discards a partially received frame, e.g. after a new connection was opened.
+     */
+    public void reset() {
+        frame.reset();
+        binaryExpected = 0;
+    }
+
+
+    /**
+     * Switches between text only and mixed text and binary frames.
+     * @param binary true after the Moodlight agreed to use binary frames with "binary 1"
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+
+    /**
+     * Returns the number of frames dropped because they exceeded the maximum frame size.
+     * @return number of dropped frames since the decoder was created
+     */
+    public int getOverflowCount() {
+        return frame.getOverflowCount();
+    }
+
+
+    /**
+     * Decodes received bytes. The listener is called for every complete frame.
+     * @param data   received bytes
+     * @param offset of the first byte in data
+     * @param length number of bytes
+     */
+    public void decode(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (binaryExpected > 0) {           // Byte of a binary frame
+                binaryFrame[binaryLength++] = data[i];
+                if (binaryLength == binaryExpected) {
+                    binaryExpected = 0;
+                    parseBinaryFrame(binaryLength);
+                }
+            } else if (data[i] < 0 && binary && BinaryFrames.frameLength(data[i]) > 0) {
+                binaryFrame[0] = data[i];       // Opcode, text only uses 7 bit ASCII
+                binaryLength = 1;
+                binaryExpected = BinaryFrames.frameLength(data[i]);
+            } else if (data[i] == delimiter) {  // Delimiter character was received
+                if (frame.isOverflowed()) {     // Incomplete frame, resynchronize here
+                    listener.onFrameOverflow(frame.getOverflowCount());
+                } else {
+                    parseFrame(frame.length());
+                }
+                frame.endFrame();               // Start anew with next byte
+            } else {                            // Normal character was received
+                frame.append(data[i]);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the text of the frame being handed to the listener.
+     * <br>This creates a String, so only use it for rare cases like logging unknown commands.
+     * Only valid while Listener.onFrame() is running.
+     * @return the frame without delimiter
+     */
+    public String frameToString() {
+        StringBuilder text = new StringBuilder(frame.length());
+        for (int position = 0; position < frame.length(); position++) {
+            text.append((char) (byteAt(position) & 0xFF));
+        }
+        return text.toString();
+    }
+
+
+    /**
+     * Parses the current frame from the ring buffer and hands it to the listener.
+     * @param end position after the last byte
+     */
+    private void parseFrame(int end) {
+        int position = skipSpaces(0, end);
+        int commandStart = position;            // First word is interpreted as command
+        while (position < end && !isSpace(byteAt(position))) {
+            position++;
+        }
+        int commandId = commands.find(frame, commandStart, position);
+        int valueCount = 0;
+        while (valueCount < MAX_VALUES) {       // Following words are interpreted as numbers
+            position = skipSpaces(position, end);
+            boolean negative = position < end && byteAt(position) == '-';
+            int digitStart = negative ? position + 1 : position;
+            int value = 0;
+            position = digitStart;
+            while (position < end && byteAt(position) >= '0' && byteAt(position) <= '9') {
+                if (value < 100000000) {        // Saturate instead of overflowing
+                    value = value * 10 + (byteAt(position) - '0');
+                }
+                position++;
+            }
+            if (position == digitStart || (position < end && !isSpace(byteAt(position)))) {
+                break;                          // Not a number
+            }
+            values[valueCount++] = negative ? -value : value;
+        }
+        listener.onFrame(commandId, valueCount, values);
+    }
+
+
+    /**
+     * Checks a complete binary frame and hands it to the listener like a text frame.
+     * @param length of the frame including the checksum
+     */
+    private void parseBinaryFrame(int length) {
+        if (!BinaryFrames.isValid(binaryFrame, length)) {
+            listener.onChecksumError(++checksumErrors);
+            return;
+        }
+        if ((binaryFrame[0] & 0xFF) == BinaryFrames.CHANNEL) {
+            int channel = binaryFrame[1] & 0xFF;
+            if (channel < Command.CHANNEL_COUNT) {
+                values[0] = binaryFrame[2] & 0xFF;
+                listener.onFrame(channel, 1, values);
+            }
+        } else {                                // BinaryFrames.COLOR
+            for (int i = 0; i < 4; i++) {
+                values[i] = binaryFrame[1 + i] & 0xFF;
+            }
+            listener.onFrame(Command.COLOR, 4, values);
+        }
+    }
+
+
+    /**
+     * Skips white-space characters.
+     * @param position to start from
+     * @param end      position after the last byte of the frame
+     * @return position of the next character which is not a white-space
+     */
+    private int skipSpaces(int position, int end) {
+        while (position < end && isSpace(byteAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+
+    /**
+     * Reads a byte of the current frame from the ring buffer.
+     * @param position of the byte in the frame
+     * @return the byte
+     */
+    private byte byteAt(int position) {
+        return frame.byteAt(position);
+    }
+
+
+    /**
+     * Checks for a white-space character.
+     * @param b character
+     * @return true for space, tab, line feed and carriage return
+     */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -0,0 +1,149 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Builds the frames sent to the Moodlight.
+ * <br>
+ * A frame looks like "command value" followed by the delimiter character, e.g. "red 123\r".
+ * The frames of the channel values and of the batched color are written
+ * into a buffer of the caller with the digits put in place,
+ * so sending values produces no garbage.
+ * Free text commands, e.g. typed by the user, are converted to new byte arrays.
+ * <br>
+ * After the Moodlight agreed to use binary frames, the channel values and colors
+ * are built as compact BinaryFrames, free text commands stay text frames.
+ * <br> <br>
+ * <i>Notes:<br>
+ * This class holds no state besides the prefixes and the binary mode,
+ * so it can be used by several threads.</i>
+ */
+public class FrameEncoder {
+
+    /** Digits of the largest int value */                   private static final int MAX_DIGITS = 10;
+
+    /** Delimiter character at the end of a command */       private final byte delimiter;
+    /** Command prefix of each channel, e.g. "red " */       private final byte[][] channelPrefixes;
+    /** Command prefix of the batched color frame */         private final byte[] colorPrefix;
+    /** Bytes needed for the longest frame */                private final int maxFrameSize;
+    /** Values are sent as binary frames */                  private volatile boolean binary;
+
+
+    /**
+     * Creates a new encoder.
+     * @param delimiter     character appended at the end of every command
+     * @param channelLabels command of each color channel, indexed by the Command channel ids
+     * @param colorLabel    command of the batched color frame
+     */
+    public FrameEncoder(byte delimiter, String[] channelLabels, String colorLabel) {
+        this.delimiter = delimiter;
+        int longestPrefix = 0;
+        channelPrefixes = new byte[channelLabels.length][];
+        for (int channel = 0; channel < channelLabels.length; channel++) {
+            channelPrefixes[channel] = (channelLabels[channel] + " ").getBytes();
+            longestPrefix = Math.max(longestPrefix, channelPrefixes[channel].length);
+        }
+        colorPrefix = (colorLabel + " ").getBytes();
+        longestPrefix = Math.max(longestPrefix, colorPrefix.length);
+        maxFrameSize = longestPrefix + 4 * (MAX_DIGITS + 1) + 1;   // Prefix, 4 values, delimiter
+    }
+
+
+    /**
+     * Switches between text and binary frames for the channel values and colors.
+     * @param binary true after the Moodlight agreed to use binary frames
+     */
+    public void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+
+    /**
+     * Tells if channel values and colors are built as binary frames.
+     * @return true in binary mode
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+
+    /**
+     * Returns the size of a buffer which can hold every channel and color frame.
+     * @return bytes needed for the longest frame
+     */
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+
+    /**
+     * Builds a free text command.
+     * @param command to be sent, the delimiter is appended automatically
+     * @return the frame
+     */
+    public byte[] encodeCommand(String command) {
+        String msg = command + (char) delimiter;
+        return msg.getBytes();
+    }
+
+
+    /**
+     * Builds the frame of a channel value, e.g. "red 123\r".
+     * @param channel Command channel id
+     * @param value   not negative, 0 ... 255 in binary mode
+     * @param frame   buffer of at least getMaxFrameSize() bytes
+     * @return length of the frame
+     */
+    public int encodeChannel(int channel, int value, byte[] frame) {
+        if (binary) {
+            return BinaryFrames.encodeChannel(channel, value, frame);
+        }
+        byte[] prefix = channelPrefixes[channel];
+        System.arraycopy(prefix, 0, frame, 0, prefix.length);
+        int length = putDecimal(frame, value, prefix.length);
+        frame[length++] = delimiter;
+        return length;
+    }
+
+
+    /**
+     * Builds the batched color frame, e.g. "color 255 128 0 255\r".
+     * @param color red, green, blue and white, not negative, 0 ... 255 in binary mode
+     * @param frame buffer of at least getMaxFrameSize() bytes
+     * @return length of the frame
+     */
+    public int encodeColor(int[] color, byte[] frame) {
+        if (binary) {
+            return BinaryFrames.encodeColor(color, frame);
+        }
+        System.arraycopy(colorPrefix, 0, frame, 0, colorPrefix.length);
+        int length = colorPrefix.length;
+        for (int i = 0; i < color.length; i++) {
+            if (i > 0) {
+                frame[length++] = ' ';
+            }
+            length = putDecimal(frame, color[i], length);
+        }
+        frame[length++] = delimiter;
+        return length;
+    }
+
+
+    /**
+     * Writes the decimal digits of a value into a frame without creating a String.
+     * @param frame    buffer for the digits
+     * @param value    not negative
+     * @param position in the frame of the first digit
+     * @return position after the last digit
+     */
+    private static int putDecimal(byte[] frame, int value, int position) {
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int d = digits - 1; d >= 0; d--) {
+            frame[position + d] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+}
@@ -0,0 +1,151 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Histogram of latencies in nanoseconds with a fixed relative precision.
+ * <br>
+ * The values are counted in log-linear buckets like in HdrHistogram:
+ * each power of two is split into SUB_BUCKETS buckets of equal width.
+ * Thus every value is counted with a precision of about 3 percent,
+ * from nanoseconds up to minutes, in about one thousand counters.
+ * <br>
+ * Recording a value only increments a counter, no objects are created.
+ * <br> <br>
+ * <i>Notes:<br>
+ * This class is not thread safe, see LatencyRecorder.</i>
+ */
+public class LatencyHistogram {
+
+    /** Bits of the sub bucket index */                      private static final int SUB_BUCKET_BITS = 5;
+    /** Buckets per power of two */                          private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Number of values per bucket */                       private final long[] counts;
+    /** Values above are counted in the last bucket */       private final long highestValue;
+    /** Number of recorded values */                         private long totalCount;
+    /** Sum of the recorded values for the mean */           private long sum;
+    /** Smallest recorded value */                           private long min;
+    /** Largest recorded value */                            private long max;
+
+
+    /**
+     * Creates an empty histogram.
+     * @param highestValue largest value to be counted precisely, e.g. 60 s in nanoseconds
+     */
+    public LatencyHistogram(long highestValue) {
+        this.highestValue = Math.max(highestValue, SUB_BUCKETS);
+        counts = new long[bucketIndex(this.highestValue) + 1];
+        reset();
+    }
+
+
+    /**
+     * Counts a value.
+     * @param value latency in nanoseconds, negative values are counted as 0
+     */
+    public void record(long value) {
+        value = Math.max(0, Math.min(value, highestValue));
+        counts[bucketIndex(value)]++;
+        totalCount++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+
+    /**
+     * Returns the number of recorded values.
+     * @return number of values since the last reset
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+
+    /**
+     * Returns the smallest recorded value.
+     * @return smallest value or 0 if empty
+     */
+    public long getMin() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+
+    /**
+     * Returns the largest recorded value.
+     * @return largest value or 0 if empty
+     */
+    public long getMax() {
+        return max;
+    }
+
+
+    /**
+     * Returns the mean of the recorded values.
+     * @return mean value or 0 if empty
+     */
+    public long getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+
+    /**
+     * Returns the value below which the given percentage of the recorded values lies.
+     * @param percentile e.g. 99.0 for the 99th percentile
+     * @return the value, precise to about 3 percent, or 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long countAtPercentile = (long) Math.ceil(percentile / 100.0 * totalCount);
+        countAtPercentile = Math.max(1, Math.min(countAtPercentile, totalCount));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= countAtPercentile) {
+                return Math.min(highestEquivalentValue(i), max);
+            }
+        }
+        return max;
+    }
+
+
+    /**
+     * Returns the bucket of a value.
+     * <br>Values below 2 * SUB_BUCKETS have their own bucket.
+     * Above, the values from 2^m to 2^(m+1) are split into SUB_BUCKETS buckets.
+     * @param value not negative
+     * @return index into counts
+     */
+    private static int bucketIndex(long value) {
+        int msb = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift = Math.max(0, msb - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >> shift);
+    }
+
+
+    /**
+     * Returns the largest value counted in a bucket.
+     * @param index of the bucket
+     * @return largest value of the bucket
+     */
+    private static long highestEquivalentValue(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long lowest = (long) (index - (shift << SUB_BUCKET_BITS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
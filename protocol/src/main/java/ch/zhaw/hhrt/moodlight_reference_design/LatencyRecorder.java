@@ -0,0 +1,145 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import java.io.IOException;
+import java.util.Locale;
+
+
+/**
+ * Measures the latency from a user input to the Moodlight confirming the new value.
+ * <br>
+ * Each stage of the pipeline marks the channels it handles with a timestamp:
+ * <ul>
+ *     <li>INPUT: a SeekBar was dragged or a color was picked, starts a new sample</li>
+ *     <li>ENQUEUED: the value was put into the TransmitQueue</li>
+ *     <li>WRITTEN: the frame was written to the transport</li>
+ *     <li>DECODED: a reply with the value of the channel was decoded</li>
+ *     <li>APPLIED: the received value was shown in the user interface</li>
+ * </ul>
+ * The time from INPUT to each later stage is counted in a LatencyHistogram per stage,
+ * so the percentiles of each part of the pipeline can be compared.
+ * Each stage is counted once per sample, a new input of the channel starts a new sample.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - The channels are handled as bit mask, bit n stands for the Command channel id n.<br>
+ * - The stages are marked from the UI thread, the writer thread and the receiving thread.
+ *   Therefore mark() is synchronized.<br>
+ * - A sample without confirmation is discarded after the maximum latency,
+ *   so that an unrelated reply later on does not distort the statistics.</i>
+ */
+public class LatencyRecorder {
+
+    /** User input, starts a sample */                       public static final int INPUT = 0;
+    /** Value put into the TransmitQueue */                  public static final int ENQUEUED = 1;
+    /** Frame written to the transport */                    public static final int WRITTEN = 2;
+    /** Reply of the Moodlight decoded */                    public static final int DECODED = 3;
+    /** Received value shown in the user interface */        public static final int APPLIED = 4;
+    /** Number of stages */                                  public static final int STAGE_COUNT = 5;
+
+    /** Names of the stages for the report */                private static final String[] STAGE_NAMES =
+            {"input", "enqueued", "written", "decoded", "applied"};
+    /** Percentiles shown in the report */                   private static final double[] PERCENTILES =
+            {50.0, 90.0, 99.0, 99.9};
+
+    /** Latencies from INPUT, indexed by stage */            private final LatencyHistogram[] histograms;
+    /** Longest time a sample is kept in nanoseconds */      private final long maxLatencyNanos;
+    /** Time of the last input per channel, 0 = none */      private final long[] inputTimes;
+    /** Bit mask of the counted stages per channel */        private final int[] countedStages;
+
+
+    /**
+     * Creates a new recorder without samples.
+     * @param channelCount number of channels
+     * @param maxLatencyMs a sample without confirmation is discarded after this time in ms
+     */
+    public LatencyRecorder(int channelCount, int maxLatencyMs) {
+        maxLatencyNanos = maxLatencyMs * 1000000L;
+        histograms = new LatencyHistogram[STAGE_COUNT];
+        for (int stage = 0; stage < STAGE_COUNT; stage++) {
+            histograms[stage] = new LatencyHistogram(maxLatencyNanos);
+        }
+        inputTimes = new long[channelCount];
+        countedStages = new int[channelCount];
+    }
+
+
+    /**
+     * Marks the channels passing a stage of the pipeline. No objects are created.
+     * @param stage    e.g. LatencyRecorder.WRITTEN
+     * @param channels bit mask of the channels
+     * @param now      current time from System.nanoTime()
+     */
+    public synchronized void mark(int stage, int channels, long now) {
+        for (int channel = 0; channel < inputTimes.length; channel++) {
+            if ((channels & (1 << channel)) == 0) {
+                continue;
+            }
+            if (stage == INPUT) {
+                inputTimes[channel] = now;
+                countedStages[channel] = 1 << INPUT;
+                continue;
+            }
+            if (inputTimes[channel] == 0 || (countedStages[channel] & (1 << stage)) != 0) {
+                continue;                       // No sample running or stage already counted
+            }
+            long latency = now - inputTimes[channel];
+            if (latency > maxLatencyNanos) {
+                inputTimes[channel] = 0;        // Never confirmed, discard the sample
+                continue;
+            }
+            histograms[stage].record(latency);
+            countedStages[channel] |= 1 << stage;
+            if (stage == APPLIED) {
+                inputTimes[channel] = 0;        // Sample complete
+            }
+        }
+    }
+
+
+    /**
+     * Returns the latencies of a stage.
+     * <br>The histogram must only be read while holding the lock of this recorder.
+     * @param stage e.g. LatencyRecorder.DECODED
+     * @return latencies from INPUT to the stage in nanoseconds
+     */
+    public LatencyHistogram getHistogram(int stage) {
+        return histograms[stage];
+    }
+
+
+    /**
+     * Forgets all samples and latencies.
+     */
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+        for (int channel = 0; channel < inputTimes.length; channel++) {
+            inputTimes[channel] = 0;
+            countedStages[channel] = 0;
+        }
+    }
+
+
+    /**
+     * Writes the percentiles of each stage in ms as a table, e.g. to the log output or a file.
+     * @param out gets the report, one line per stage
+     * @throws IOException if writing to out failed
+     */
+    public synchronized void report(Appendable out) throws IOException {
+        out.append(String.format(Locale.US, "%-22s %10s", "latency from input [ms]", "count"));
+        for (double percentile : PERCENTILES) {
+            out.append(String.format(Locale.US, " %8s", "p" + percentile));
+        }
+        out.append(String.format(Locale.US, " %8s%n", "max"));
+        for (int stage = ENQUEUED; stage < STAGE_COUNT; stage++) {
+            LatencyHistogram histogram = histograms[stage];
+            out.append(String.format(Locale.US, "%-22s %10d", STAGE_NAMES[stage],
+                    histogram.getTotalCount()));
+            for (double percentile : PERCENTILES) {
+                out.append(String.format(Locale.US, " %8.2f",
+                        histogram.getValueAtPercentile(percentile) / 1e6));
+            }
+            out.append(String.format(Locale.US, " %8.2f%n", histogram.getMax() / 1e6));
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import java.io.IOException;
+
+
+/**
+ * Link to a Moodlight, e.g. over Bluetooth or to a simulated Moodlight.
+ * <br>
+ * The sending and receiving pipelines only use this interface,
+ * so they work the same way with every kind of link.
+ * <ul>
+ *     <li>open() and close() never block, the link is opened in the background</li>
+ *     <li>write() blocks until the bytes are handed to the link</li>
+ *     <li>received bytes are passed to the Listener as soon as they arrive</li>
+ * </ul>
+ * <i>Notes:<br>
+ * Every change of the state is reported with Listener.onStateChanged().
+ * An implementation which retries opening the link goes through OPENING and BACKING_OFF
+ * for each attempt, a link which opens at once may go straight from CLOSED to OPEN.</i>
+ */
+public interface MoodlightTransport {
+
+
+    /**
+     * Callback for the state of the link and the received data.
+     * <br>It is called from the threads of the transport, not from the UI thread!
+     */
+    interface Listener {
+        /**
+         * Called when the state of the link changed.
+         * @param state   new state, e.g. MoodlightTransport.OPENING
+         * @param attempt number of the current attempt to open the link, starting at 1
+         * @param cause   reason of a failed attempt or of a lost link, or null
+         */
+        void onStateChanged(int state, int attempt, Exception cause);
+
+        /**
+         * Called when the link is open and write() can be used.
+         */
+        void onOpened();
+
+        /**
+         * Called when the link could not be opened after the maximum number of tries.
+         */
+        void onOpenFailed();
+
+        /**
+         * Called for each chunk of received bytes, a chunk may hold any part of a frame.
+         * @param buffer holding the received bytes, only valid during this call
+         * @param offset position of the first received byte
+         * @param length number of received bytes
+         */
+        void onReceived(byte[] buffer, int offset, int length);
+    }
+
+
+    /** Not open, not trying to open */                      int CLOSED = 0;
+    /** Trying to open */                                    int OPENING = 1;
+    /** Open, data can be written and received */            int OPEN = 2;
+    /** Waiting before the next attempt to open */           int BACKING_OFF = 3;
+
+
+    /**
+     * Registers the callback. Must be called before open().
+     * @param listener gets the state and the received data
+     */
+    void setListener(Listener listener);
+
+
+    /**
+     * Returns the actual state of the link.
+     * @return CLOSED, OPENING, OPEN or BACKING_OFF
+     */
+    int getState();
+
+
+    /**
+     * Starts opening the link. Never blocks.
+     * <br>Nothing happens if already open or opening.
+     */
+    void open();
+
+
+    /**
+     * Closes the link or stops trying to open it. Never blocks.
+     */
+    void close();
+
+
+    /**
+     * Closes a broken link and opens it again, e.g. after write() failed. Never blocks.
+     */
+    void reopen();
+
+
+    /**
+     * Writes bytes to the link and blocks until they are sent.
+     * <br>Called only by one thread at a time, e.g. the writer thread of the TransmitQueue.
+     * @param buffer holding the bytes to be sent
+     * @param offset position of the first byte
+     * @param length number of bytes
+     * @throws IOException if the link is not open or broken
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,380 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+
+/**
+ * Moodlight simulated in the same process, e.g. for measuring throughput and latency
+ * of the sending and receiving pipelines without hardware, also on a plain Java VM.
+ * <br>
+ * The simulation behaves like the Moodlight firmware:
+ * <ul>
+ *     <li>"red 123" sets a channel, "red ?" is answered with "red 123"</li>
+ *     <li>"color 255 128 0 255" sets red, green, blue and white at once,
+ *     "color ?" is answered with all four values, if the batched color command is enabled</li>
+ *     <li>"binary ?" is answered with "binary 1", if binary frames are enabled.
+ *     Then the replies are sent as BinaryFrames</li>
+ *     <li>new values are confirmed with a reply, if acknowledging is enabled</li>
+ *     <li>unknown commands are ignored or echoed back</li>
+ * </ul>
+ * The link is simulated with a serial line of a configurable baud rate:
+ * write() blocks as long as the bytes would need on the line,
+ * and each reply takes the processing delay of the Moodlight plus its time on the line.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - A byte on the serial line takes 10 bits: start bit, 8 data bits and stop bit.<br>
+ * - The replies are passed to the listener by the simulator thread, one after the other.<br>
+ * - A simulator thread retired by close() never calls the listener again,
+ * so reopen() reports CLOSED strictly before the OPEN of the new thread.</i>
+ */
+public class SimulatedMoodlight implements MoodlightTransport {
+
+    /** Bits per byte on the serial line */                  private static final int BITS_PER_BYTE = 10;
+
+    /** Delimiter character at the end of a frame */         private final byte delimiter;
+    /** Maps command labels to Command ids and back */       private final CommandTable commands;
+    /** Time per byte on the serial line in nanoseconds */   private final long byteTimeNanos;
+    /** Processing time per frame in nanoseconds */          private final long frameDelayNanos;
+    /** Decodes the frames written to the simulation */      private final FrameDecoder decoder;
+
+    /** Gets the state and the received data */              private volatile Listener listener;
+    /** Actual state of the link */                          private volatile int state;
+    /** Thread passing the replies to the listener */        private volatile Thread simulatorThread;
+    /** Held while calling the listener about the link */    private final Object callbackLock = new Object();
+    /** Replies waiting to be sent */                        private final ArrayDeque<byte[]> replies;
+    /** Time each waiting reply is ready, same order */      private final ArrayDeque<Long> replyTimes;
+
+    /** Values of the channels, indexed by channel id */     private final int[] values;
+    /** Moodlight understands the batched color command */   private volatile boolean batchedColorSupported;
+    /** Unknown commands are sent back */                    private volatile boolean echo;
+    /** New values are confirmed with a reply */             private volatile boolean acknowledge;
+    /** Moodlight understands the binary frames */           private volatile boolean binarySupported;
+    /** Replies are sent as binary frames */                 private boolean binaryMode;
+    /** Number of frames received from the app */            private volatile int receivedFrames;
+
+
+    /**
+     * Creates a new simulated Moodlight with all channels off.
+     * @param delimiter    character at the end of every frame
+     * @param commands     table of the known commands
+     * @param baudRate     speed of the simulated serial line in bits per second
+     * @param frameDelayMs time the Moodlight needs to process a frame in ms
+     */
+    public SimulatedMoodlight(byte delimiter, CommandTable commands, int baudRate,
+                              int frameDelayMs) {
+        this.delimiter = delimiter;
+        this.commands = commands;
+        byteTimeNanos = BITS_PER_BYTE * 1000000000L / baudRate;
+        frameDelayNanos = frameDelayMs * 1000000L;
+        replies = new ArrayDeque<>();
+        replyTimes = new ArrayDeque<>();
+        values = new int[Command.CHANNEL_COUNT];
+        state = CLOSED;
+        decoder = new FrameDecoder(delimiter, commands, 256,
+                new FrameDecoder.Listener() {
+                    public void onFrame(int commandId, int valueCount, int[] frameValues) {
+                        processFrame(commandId, valueCount, frameValues);
+                    }
+
+                    public void onFrameOverflow(int overflowCount) {
+                        // Dropped like the firmware does
+                    }
+
+                    public void onChecksumError(int errorCount) {
+                        // Dropped like the firmware does
+                    }
+                });
+    }
+
+
+    /**
+     * Enables the batched color command, like a Moodlight with newer firmware.
+     * @param supported true if "color" frames are understood
+     */
+    public void setBatchedColorSupported(boolean supported) {
+        batchedColorSupported = supported;
+    }
+
+
+    /**
+     * Sends unknown commands back to the app.
+     * @param echo true to echo unknown commands
+     */
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+
+    /**
+     * Enables the binary frames, like a Moodlight with newer firmware.
+     * @param supported true if "binary ?" is answered
+     */
+    public void setBinarySupported(boolean supported) {
+        binarySupported = supported;
+    }
+
+
+    /**
+     * Confirms each new value with a reply, e.g. "red 123" is answered with "red 123".
+     * <br>Useful to measure the latency until the Moodlight confirms a value.
+     * @param acknowledge true to confirm new values
+     */
+    public void setAcknowledge(boolean acknowledge) {
+        this.acknowledge = acknowledge;
+    }
+
+
+    /**
+     * Changes a channel like the buttons of the Moodlight do. Nothing is sent to the app.
+     * @param channel Command channel id
+     * @param value   new value
+     */
+    public synchronized void setValue(int channel, int value) {
+        values[channel] = value;
+    }
+
+
+    /**
+     * Returns the value of a channel.
+     * @param channel Command channel id
+     * @return the value last set
+     */
+    public synchronized int getValue(int channel) {
+        return values[channel];
+    }
+
+
+    /**
+     * Returns the number of frames received from the app.
+     * @return frames since the simulation was created
+     */
+    public int getReceivedFrames() {
+        return receivedFrames;
+    }
+
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    @Override
+    public int getState() {
+        return state;
+    }
+
+
+    @Override
+    public synchronized void open() {
+        if (simulatorThread != null) {
+            return;
+        }
+        state = OPENING;
+        decoder.reset();
+        binaryMode = false;                     // Negotiated anew for each connection
+        decoder.setBinary(false);
+        simulatorThread = new Thread(
+                new Runnable() {
+                    public void run() {
+                        sendReplies();
+                    }
+                }, "SimulatedMoodlight");
+        simulatorThread.start();
+    }
+
+
+    /**
+     * Closes the simulated link and reports CLOSED, if it was open.
+     * <br>The simulator thread is retired before, so no reply arrives after CLOSED.
+     */
+    @Override
+    public void close() {
+        synchronized (callbackLock) {
+            boolean wasOpen;
+            synchronized (this) {
+                wasOpen = state == OPEN;
+                if (simulatorThread != null) {
+                    simulatorThread.interrupt();
+                    simulatorThread = null;
+                }
+                replies.clear();
+                replyTimes.clear();
+                state = CLOSED;
+            }
+            if (wasOpen) {
+                listener.onStateChanged(CLOSED, 0, null);
+            }
+        }
+    }
+
+
+    @Override
+    public void reopen() {
+        close();
+        open();
+    }
+
+
+    /**
+     * Receives bytes like the serial line of the Moodlight.
+     * <br>Blocks as long as the bytes need on the simulated serial line.
+     * Complete frames are processed immediately, their replies are sent
+     * after the processing delay by the simulator thread.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        if (state != OPEN) {
+            throw new IOException("Simulated Moodlight not open");
+        }
+        try {
+            sleepNanos(length * byteTimeNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing");
+        }
+        decoder.decode(buffer, offset, length);
+    }
+
+
+    /**
+     * Processes a frame received from the app, like the firmware does.
+     * @param commandId  Command id of the received command
+     * @param valueCount number of received values
+     * @param frameValues received values
+     */
+    private void processFrame(int commandId, int valueCount, int[] frameValues) {
+        receivedFrames++;
+        byte[] reply = null;
+        synchronized (this) {
+            if (commandId >= 0 && commandId < Command.CHANNEL_COUNT) {
+                if (valueCount > 0) {
+                    values[commandId] = frameValues[0];
+                }
+                if (valueCount == 0 || acknowledge) {   // Question, e.g. "red ?"
+                    reply = channelReply(commandId);
+                }
+            } else if (commandId == Command.COLOR && batchedColorSupported) {
+                if (valueCount >= 4) {          // Red, green, blue and white
+                    values[Command.RED] = frameValues[0];
+                    values[Command.GREEN] = frameValues[1];
+                    values[Command.BLUE] = frameValues[2];
+                    values[Command.WHITE] = frameValues[3];
+                }
+                if (valueCount < 4 || acknowledge) {    // Question "color ?"
+                    reply = colorReply();
+                }
+            } else if (commandId == Command.BINARY && binarySupported && valueCount == 0) {
+                reply = textReply(commands.getLabel(Command.BINARY) + " 1");
+                binaryMode = true;              // Question "binary ?", replies are binary now
+                decoder.setBinary(true);
+            } else if (commandId != Command.IDLE && echo) {
+                reply = textReply(decoder.frameToString());
+            }
+            if (reply != null) {
+                replies.addLast(reply);
+                replyTimes.addLast(System.nanoTime() + frameDelayNanos);
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Builds the reply with the value of a channel. Must be called while holding the lock.
+     * @param channel Command channel id
+     * @return e.g. "red 123" as text or binary frame
+     */
+    private byte[] channelReply(int channel) {
+        if (binaryMode) {
+            byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+            int length = BinaryFrames.encodeChannel(channel, values[channel], frame);
+            return Arrays.copyOf(frame, length);
+        }
+        return textReply(commands.getLabel(channel) + " " + values[channel]);
+    }
+
+
+    /**
+     * Builds the reply with all channels. Must be called while holding the lock.
+     * @return e.g. "color 255 128 0 255" as text or binary frame
+     */
+    private byte[] colorReply() {
+        int[] color = {values[Command.RED], values[Command.GREEN], values[Command.BLUE],
+                values[Command.WHITE]};
+        if (binaryMode) {
+            byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+            return Arrays.copyOf(frame, BinaryFrames.encodeColor(color, frame));
+        }
+        return textReply(commands.getLabel(Command.COLOR) + " " + color[0] + " " + color[1]
+                + " " + color[2] + " " + color[3]);
+    }
+
+
+    /**
+     * Builds a text reply.
+     * @param text of the reply
+     * @return the text followed by the delimiter
+     */
+    private byte[] textReply(String text) {
+        return (text + (char) delimiter).getBytes();
+    }
+
+
+    /**
+     * Main loop of the simulator thread.
+     * <br>Opens the link and sends the replies when their processing delay is over.
+     * The listener is only called while this thread is still the current simulator thread,
+     * the check and the call are atomic with respect to close().
+     */
+    private void sendReplies() {
+        Thread self = Thread.currentThread();
+        synchronized (callbackLock) {
+            if (simulatorThread != self) {
+                return;                         // Closed before it was open
+            }
+            state = OPEN;
+            listener.onStateChanged(OPEN, 1, null);
+            listener.onOpened();
+        }
+        try {
+            while (simulatorThread == self) {
+                byte[] reply;
+                long readyTime;
+                synchronized (this) {
+                    while (simulatorThread == self && replies.isEmpty()) {
+                        wait();
+                    }
+                    if (simulatorThread != self) {
+                        break;
+                    }
+                    reply = replies.pollFirst();
+                    readyTime = replyTimes.pollFirst();
+                }
+                sleepNanos(readyTime - System.nanoTime());
+                sleepNanos(reply.length * byteTimeNanos);   // Time on the serial line
+                synchronized (callbackLock) {
+                    if (simulatorThread == self) {
+                        listener.onReceived(reply, 0, reply.length);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            // close() was called, it reports CLOSED
+        }
+    }
+
+
+    /**
+     * Sleeps for a time given in nanoseconds.
+     * @param nanos time to sleep, nothing happens if not positive
+     * @throws InterruptedException if the thread was interrupted
+     */
+    private static void sleepNanos(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+        }
+    }
+}
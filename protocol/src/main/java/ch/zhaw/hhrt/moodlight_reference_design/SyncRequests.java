@@ -0,0 +1,135 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+
+/**
+ * Keeps track of the questions sent to synchronize the SeekBars with the Moodlight.
+ * <br>
+ * All questions are queued at once instead of waiting for each reply before the next question.
+ * Each received channel value is correlated with the outstanding question of its channel.
+ * A question without reply is asked again after a timeout, up to a maximum number of attempts.
+ * Thus a complete synchronization takes about one round trip time
+ * plus the pauses of the transmit queue between the questions.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - The channels are handled as bit mask, bit n stands for the Command channel id n.<br>
+ * - Replies arrive in the receiving thread, timeouts are checked in the UI thread.
+ *   Therefore all methods are synchronized.</i>
+ */
+public class SyncRequests {
+
+
+    /**
+     * Callback for the end of a synchronization.
+     * <br>It is called from the thread calling onReply() or expire().
+     */
+    public interface Listener {
+        /**
+         * Called when no question is outstanding anymore.
+         * @param missingChannels bit mask of the channels which never replied, 0 on success
+         * @param elapsedNanos    time since the questions were sent
+         */
+        void onSyncFinished(int missingChannels, long elapsedNanos);
+    }
+
+
+    /** Time to wait for a reply in nanoseconds */           private final long timeoutNanos;
+    /** Number of times a question is asked at most */       private final int maxAttempts;
+    /** Gets informed at the end of a synchronization */     private final Listener listener;
+    /** Bit mask of the questions without reply */           private int outstanding;
+    /** Bit mask of the channels which never replied */      private int missing;
+    /** Deadline of each question in nanoseconds */          private final long[] deadlines;
+    /** Number of times each question was asked */           private final int[] attempts;
+    /** Time the synchronization started */                  private long startTime;
+
+
+    /**
+     * Creates a new tracker without outstanding questions.
+     * @param timeoutMs   time to wait for a reply in ms
+     * @param maxAttempts number of times a question is asked at most
+     * @param listener    gets informed at the end of a synchronization
+     */
+    public SyncRequests(int timeoutMs, int maxAttempts, Listener listener) {
+        this.timeoutNanos = timeoutMs * 1000000L;
+        this.maxAttempts = maxAttempts;
+        this.listener = listener;
+        deadlines = new long[Command.CHANNEL_COUNT];
+        attempts = new int[Command.CHANNEL_COUNT];
+    }
+
+
+    /**
+     * Registers the questions which were just sent.
+     * <br>A synchronization still running is replaced.
+     * @param channels bit mask of the asked channels
+     * @param now      current time from System.nanoTime()
+     */
+    public synchronized void begin(int channels, long now) {
+        outstanding = channels;
+        missing = 0;
+        startTime = now;
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            deadlines[channel] = now + timeoutNanos;
+            attempts[channel] = 1;
+        }
+    }
+
+
+    /**
+     * Correlates a received channel value with the outstanding question of its channel.
+     * @param channel Command channel id of the received value
+     * @param now     current time from System.nanoTime()
+     * @return true if the value answered an outstanding question
+     */
+    public synchronized boolean onReply(int channel, long now) {
+        int bit = 1 << channel;
+        if ((outstanding & bit) == 0) {
+            return false;                       // Not asked, e.g. changed on the Moodlight
+        }
+        outstanding &= ~bit;
+        if (outstanding == 0) {
+            listener.onSyncFinished(missing, now - startTime);
+        }
+        return true;
+    }
+
+
+    /**
+     * Checks the deadlines of the outstanding questions.
+     * <br>Questions which timed out are returned to be asked again.
+     * Questions which were asked too often are given up.
+     * @param now current time from System.nanoTime()
+     * @return bit mask of the channels to be asked again
+     */
+    public synchronized int expire(long now) {
+        int retry = 0;
+        if (outstanding == 0) {
+            return retry;
+        }
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            int bit = 1 << channel;
+            if ((outstanding & bit) != 0 && now - deadlines[channel] >= 0) {
+                if (attempts[channel] < maxAttempts) {
+                    attempts[channel]++;
+                    deadlines[channel] = now + timeoutNanos;
+                    retry |= bit;
+                } else {
+                    outstanding &= ~bit;        // Give up this channel
+                    missing |= bit;
+                }
+            }
+        }
+        if (outstanding == 0) {
+            listener.onSyncFinished(missing, now - startTime);
+        }
+        return retry;
+    }
+
+
+    /**
+     * Tells if questions are still waiting for a reply.
+     * @return true while a synchronization is running
+     */
+    public synchronized boolean isPending() {
+        return outstanding != 0;
+    }
+}
@@ -0,0 +1,458 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import java.util.ArrayDeque;
+
+
+/**
+ * Asynchronous transmit pipeline for the commands sent to the Moodlight.
+ * <br>
+ * Commands are put into a bounded queue without blocking the caller.
+ * A single writer thread takes them out of the queue and writes them to the transport.
+ * <br>
+ * The Moodlight needs some time to process each command.
+ * This pause between subsequent frames is enforced by the writer thread,
+ * so the user interface never has to wait.
+ * <br>
+ * Values of the color channels are not queued but coalesced:
+ * each channel has one slot holding only the latest value not yet sent.
+ * When a SeekBar is dragged, the intermediate values are overwritten in the slot
+ * instead of flooding the Bluetooth link with stale values.
+ * <br>
+ * A complete color can be sent as one batched frame, e.g. "color 255 128 0 255"
+ * for red, green, blue and white, if the Moodlight supports it.
+ * The color has its own coalescing slot as well.
+ * <br>
+ * Values changing over time, e.g. a color transition, are computed by an Animation.
+ * The writer thread asks the animation for its values each time the link is ready
+ * for the next frame, so the values are sent at the rate the link sustains
+ * and a congested link skips intermediate values instead of falling behind.
+ * <br> <br>
+ * <i>Notes:<br>
+ * - When the queue is full, the oldest command is dropped to make room for the newest one.<br>
+ * - A pending color is sent first, then pending channel values. Queued commands take turns
+ * with them, so a dragged SeekBar or an animation can not hold back e.g. the synch questions.<br>
+ * - While an animation is running, the writer thread wakes up once per frame interval.<br>
+ * - While no transport is set (not connected), the commands are kept in the queue.</i>
+ */
+public class TransmitQueue {
+
+
+    /**
+     * Callback for errors of the writer thread.
+     * <br>It is called from the writer thread, not from the UI thread!
+     */
+    public interface Listener {
+        /**
+         * Called when a frame could not be written to the transport.
+         * @param e is the exception thrown by the transport
+         */
+        void onTransmitError(Exception e);
+    }
+
+
+    /**
+     * Source of values computed just before they are sent, e.g. a color transition.
+     * <br>It is called from the writer thread, not from the UI thread!
+     */
+    public interface Animation {
+        /**
+         * Called each time the link is ready for the next frame.
+         * <br>Put the values of this moment with sendColor() or sendChannel().
+         * Nothing needs to be put if the values did not change since the last call.
+         * @param queue to put the values into
+         * @param now   current time from System.nanoTime()
+         * @return false when the animation is finished, then it is not called anymore
+         */
+        boolean onFrameReady(TransmitQueue queue, long now);
+    }
+
+
+    /** Frames waiting to be sent */                         private final ArrayDeque<byte[]> frames;
+    /** Maximum number of frames in the queue */             private final int capacity;
+    /** Builds the frames without garbage */                 private final FrameEncoder encoder;
+    /** Minimum time between two frames in nanoseconds */    private volatile long frameIntervalNanos;
+    /** Link to the Moodlight, null if not connected */      private MoodlightTransport transport;
+    /** Gets informed about transmit errors */               private Listener listener;
+    /** Thread that writes the frames to the transport */    private volatile Thread writerThread;
+    /** Number of frames dropped because of a full queue */  private int droppedFrames;
+    /** Measures the latencies, null if not measured */      private volatile LatencyRecorder latencyRecorder;
+    /** Computes values while sending, null if none */       private Animation animation;
+
+    /** Latest value per channel not yet sent, -1 = none */  private final int[] pendingValues;
+    /** Channel to look at first for the next frame */       private int nextChannel;
+    /** Channel values overwritten before being sent */      private int coalescedValues;
+    /** Buffer for frames built by the writer thread */      private final byte[] channelFrame;
+    /** Bit mask of the channels in channelFrame */          private int frameChannels;
+    /** Last frame came from a slot, a command is next */    private boolean slotFrameSent;
+
+    /** Latest color not yet sent as R, G, B, W */           private final int[] pendingColor;
+    /** A batched color frame is waiting */                  private boolean colorPending;
+
+
+    /**
+     * Creates a new transmit queue. The writer thread is not started yet.
+     * @param capacity        maximum number of frames waiting in the queue
+     * @param frameIntervalMs minimum time in ms between the start of two subsequent frames
+     * @param delimiter       character appended at the end of every command
+     * @param channelLabels   command of each color channel, indexed by the Command channel ids
+     * @param colorLabel      command of the batched color frame
+     */
+    public TransmitQueue(int capacity, int frameIntervalMs, byte delimiter,
+                         String[] channelLabels, String colorLabel) {
+        this.capacity = capacity;
+        this.frames = new ArrayDeque<>(capacity);
+        setFrameInterval(frameIntervalMs);
+        encoder = new FrameEncoder(delimiter, channelLabels, colorLabel);
+        pendingValues = new int[channelLabels.length];
+        for (int channel = 0; channel < channelLabels.length; channel++) {
+            pendingValues[channel] = -1;
+        }
+        pendingColor = new int[4];
+        channelFrame = new byte[encoder.getMaxFrameSize()];
+    }
+
+
+    /**
+     * Changes the pacing of the writer thread.
+     * @param frameIntervalMs minimum time in ms between the start of two subsequent frames
+     */
+    public void setFrameInterval(int frameIntervalMs) {
+        frameIntervalNanos = frameIntervalMs * 1000000L;
+    }
+
+
+    /**
+     * Registers the callback for transmit errors.
+     * @param listener gets informed about errors, may be null
+     */
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+
+    /**
+     * Switches between text and binary frames for the channel values and colors.
+     * <br>Only use binary frames after the Moodlight agreed to them, see BinaryFrames.
+     * @param binary true to send compact binary frames
+     */
+    public void setBinary(boolean binary) {
+        encoder.setBinary(binary);
+    }
+
+
+    /**
+     * Registers the recorder which measures the latencies of the channel values.
+     * <br>The values are marked as ENQUEUED when put into the queue
+     * and as WRITTEN when written to the transport.
+     * @param latencyRecorder measures the latencies, null to stop measuring
+     */
+    public void setLatencyRecorder(LatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+
+
+    /**
+     * Starts an animation, a running animation is replaced. Never blocks.
+     * <br>Its values are pending until they are sent, like the values of sendChannel()
+     * and sendColor(). Thus the last values of a finished animation are sent anyway.
+     * @param animation computes the values while sending, null to stop the running animation
+     */
+    public synchronized void setAnimation(Animation animation) {
+        this.animation = animation;
+        notifyAll();
+    }
+
+
+    /**
+     * Sets the link the frames are written to.
+     * @param transport the open link or null when disconnected
+     */
+    public synchronized void setTransport(MoodlightTransport transport) {
+        this.transport = transport;
+        notifyAll();                            // Wake up the writer, frames may be waiting
+    }
+
+
+    /**
+     * Puts a command into the queue. Never blocks.
+     * @param command to be sent, the delimiter is appended automatically
+     * @return false if the queue was full and the oldest frame had to be dropped
+     */
+    public boolean send(String command) {
+        return enqueue(encoder.encodeCommand(command));
+    }
+
+
+    /**
+     * Sets the value of a color channel. Never blocks.
+     * <br>If the previous value of this channel has not been sent yet, it is overwritten.
+     * Thus only the latest value is sent at the next pacing tick.
+     * @param channel Command channel id, e.g. Command.RED
+     * @param value   new value of the channel, not negative
+     * @return false if a value not yet sent was overwritten
+     */
+    public synchronized boolean sendChannel(int channel, int value) {
+        boolean fresh = pendingValues[channel] < 0;
+        if (!fresh) {
+            coalescedValues++;                  // Stale value is never sent
+        }
+        pendingValues[channel] = value;
+        markLatency(LatencyRecorder.ENQUEUED, 1 << channel);
+        notifyAll();
+        return fresh;
+    }
+
+
+    /**
+     * Sets all channels with one batched frame. Never blocks.
+     * <br>Only use this if the Moodlight supports the batched color command.
+     * A color not sent yet is overwritten, and pending values of single channels are discarded
+     * because the new color replaces them anyway.
+     * @param red   value of the red channel
+     * @param green value of the green channel
+     * @param blue  value of the blue channel
+     * @param white value of the white channel
+     * @return false if a color or a channel value not yet sent was overwritten
+     */
+    public synchronized boolean sendColor(int red, int green, int blue, int white) {
+        boolean fresh = !colorPending;
+        if (colorPending) {
+            coalescedValues++;
+        }
+        for (int channel = 0; channel < pendingValues.length; channel++) {
+            if (pendingValues[channel] >= 0) {
+                pendingValues[channel] = -1;
+                coalescedValues++;
+                fresh = false;
+            }
+        }
+        pendingColor[0] = red;
+        pendingColor[1] = green;
+        pendingColor[2] = blue;
+        pendingColor[3] = white;
+        colorPending = true;
+        markLatency(LatencyRecorder.ENQUEUED, (1 << pendingValues.length) - 1);
+        notifyAll();
+        return fresh;
+    }
+
+
+    /**
+     * Returns the number of channel values which were overwritten before they were sent.
+     * @return number of frames saved by coalescing since the queue was created
+     */
+    public synchronized int getCoalescedValues() {
+        return coalescedValues;
+    }
+
+
+    /**
+     * Returns the number of frames dropped because the queue was full.
+     * @return number of dropped frames since the queue was created
+     */
+    public synchronized int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+
+    /**
+     * Starts the writer thread.
+     */
+    public synchronized void start() {
+        if (writerThread != null) {
+            return;                             // Already running
+        }
+        writerThread = new Thread(
+                new Runnable() {
+                    public void run() {
+                        writeFrames();
+                    }
+                }, "TransmitQueue");
+        writerThread.start();
+    }
+
+
+    /**
+     * Stops the writer thread. Frames still in the queue are discarded.
+     */
+    public synchronized void stop() {
+        frames.clear();
+        for (int channel = 0; channel < pendingValues.length; channel++) {
+            pendingValues[channel] = -1;
+        }
+        colorPending = false;
+        animation = null;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            writerThread = null;
+        }
+        notifyAll();
+    }
+
+
+    /**
+     * Puts a frame into the queue, drops the oldest frame if the queue is full.
+     * @param frame complete frame including the delimiter
+     * @return false if a frame had to be dropped
+     */
+    private synchronized boolean enqueue(byte[] frame) {
+        boolean accepted = true;
+        if (frames.size() >= capacity) {
+            frames.pollFirst();                 // The newest command is more important
+            droppedFrames++;
+            accepted = false;
+        }
+        frames.addLast(frame);
+        notifyAll();
+        return accepted;
+    }
+
+
+    /**
+     * Main loop of the writer thread.
+     * <br>Waits for frames, keeps the pause between subsequent frames and writes them.
+     * The frame is taken only after the pause, so that a channel value is as fresh as possible.
+     */
+    private void writeFrames() {
+        long lastFrameTime = System.nanoTime() - frameIntervalNanos;
+        Thread self = Thread.currentThread();
+        while (writerThread == self) {
+            byte[] frame;
+            int frameLength;
+            int channels;
+            MoodlightTransport out;
+            Listener errorListener;
+            try {
+                synchronized (this) {
+                    while (writerThread == self && (!hasWork() || transport == null)) {
+                        wait();                 // Nothing to send or not connected
+                    }
+                }
+                // Give the Moodlight time to process the previous frame
+                long pause = lastFrameTime + frameIntervalNanos - System.nanoTime();
+                if (pause > 0) {
+                    Thread.sleep(pause / 1000000L, (int) (pause % 1000000L));
+                }
+                synchronized (this) {
+                    if (writerThread != self) {
+                        break;                  // stop() was called
+                    }
+                    if (!hasWork() || transport == null) {
+                        continue;               // Disconnected during the pause
+                    }
+                    runAnimation();
+                    frameLength = 0;
+                    if (!slotFrameSent || frames.isEmpty()) {   // Take turns with the commands
+                        frameLength = takeColorFrame();
+                        if (frameLength == 0) {
+                            frameLength = takeChannelFrame();
+                        }
+                    }
+                    slotFrameSent = frameLength > 0;
+                    if (slotFrameSent) {
+                        frame = channelFrame;
+                        channels = frameChannels;
+                    } else {
+                        frame = frames.pollFirst();
+                        frameLength = frame != null ? frame.length : 0;
+                        channels = 0;
+                    }
+                    out = transport;
+                    errorListener = listener;
+                }
+            } catch (InterruptedException e) {
+                break;                          // stop() was called
+            }
+            if (frame == null) {
+                lastFrameTime = System.nanoTime();  // Animation unchanged, ask again next tick
+                continue;
+            }
+            lastFrameTime = System.nanoTime();  // Interval runs from start to start
+            try {
+                out.write(frame, 0, frameLength);
+                markLatency(LatencyRecorder.WRITTEN, channels);
+            } catch (Exception e) {
+                if (errorListener != null) {
+                    errorListener.onTransmitError(e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Checks if there is anything to send. Must be called while holding the lock.
+     * @return true if a channel value, a command or an animation is waiting
+     */
+    private boolean hasWork() {
+        if (colorPending || !frames.isEmpty() || animation != null) {
+            return true;
+        }
+        for (int value : pendingValues) {
+            if (value >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Lets the animation put its values for this frame, if an animation is running.
+     * Must be called while holding the lock.
+     */
+    private void runAnimation() {
+        if (animation != null && !animation.onFrameReady(this, System.nanoTime())) {
+            animation = null;                   // Finished, its last values are pending
+        }
+    }
+
+
+    /**
+     * Builds the frame of the next pending channel value into channelFrame.
+     * <br>The channels are served round robin, so a dragged SeekBar can not starve the others.
+     * Must be called while holding the lock.
+     * @return length of the frame or 0 if no channel value is pending
+     */
+    private int takeChannelFrame() {
+        for (int i = 0; i < pendingValues.length; i++) {
+            int channel = (nextChannel + i) % pendingValues.length;
+            int value = pendingValues[channel];
+            if (value >= 0) {
+                pendingValues[channel] = -1;
+                nextChannel = channel + 1;
+                frameChannels = 1 << channel;
+                return encoder.encodeChannel(channel, value, channelFrame);
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Builds the batched color frame into channelFrame, if a color is pending.
+     * Must be called while holding the lock.
+     * @return length of the frame or 0 if no color is pending
+     */
+    private int takeColorFrame() {
+        if (!colorPending) {
+            return 0;
+        }
+        colorPending = false;
+        frameChannels = (1 << pendingValues.length) - 1;
+        return encoder.encodeColor(pendingColor, channelFrame);
+    }
+
+
+    /**
+     * Marks channels in the latency recorder, if latencies are measured.
+     * @param stage    e.g. LatencyRecorder.WRITTEN
+     * @param channels bit mask of the channels
+     */
+    private void markLatency(int stage, int channels) {
+        LatencyRecorder recorder = latencyRecorder;
+        if (recorder != null && channels != 0) {
+            recorder.mark(stage, channels, System.nanoTime());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the checksum and the layout of the BinaryFrames.
+ */
+public class BinaryFramesTest {
+
+
+    /**
+     * The CRC8 with polynomial 0x07 and initial value 0 has the check value 0xF4.
+     */
+    @Test
+    public void crc8MatchesCheckValue() {
+        byte[] data = "123456789".getBytes();
+        assertEquals((byte) 0xF4, BinaryFrames.crc8(data, 0, data.length));
+    }
+
+
+    /**
+     * The checksum only covers the given range.
+     */
+    @Test
+    public void crc8UsesOffsetAndLength() {
+        byte[] data = "xx123456789yy".getBytes();
+        assertEquals((byte) 0xF4, BinaryFrames.crc8(data, 2, 9));
+    }
+
+
+    /**
+     * Each frame has the length announced by its opcode and a valid checksum.
+     */
+    @Test
+    public void encodedFramesAreValid() {
+        byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+
+        int length = BinaryFrames.encodeChannel(Command.RED, 200, frame);
+        assertEquals(BinaryFrames.frameLength(frame[0]), length);
+        assertTrue(BinaryFrames.isValid(frame, length));
+
+        length = BinaryFrames.encodeColor(new int[]{255, 128, 0, 255}, frame);
+        assertEquals(BinaryFrames.frameLength(frame[0]), length);
+        assertTrue(BinaryFrames.isValid(frame, length));
+    }
+
+
+    /**
+     * A single flipped bit in the payload is detected.
+     */
+    @Test
+    public void corruptedFrameIsInvalid() {
+        byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+        int length = BinaryFrames.encodeChannel(Command.BLUE, 42, frame);
+        for (int bit = 0; bit < 8; bit++) {
+            frame[2] ^= 1 << bit;
+            assertFalse(BinaryFrames.isValid(frame, length));
+            frame[2] ^= 1 << bit;
+        }
+        assertTrue(BinaryFrames.isValid(frame, length));
+    }
+
+
+    /**
+     * Text characters are no opcodes, so text and binary frames can be mixed.
+     */
+    @Test
+    public void asciiIsNoOpcode() {
+        for (int c = 0; c < 128; c++) {
+            assertEquals(0, BinaryFrames.frameLength(c));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the growing, wrapping and overflow handling of the FrameAccumulator.
+ */
+public class FrameAccumulatorTest {
+
+
+    /**
+     * A frame longer than the initial capacity grows the buffer and keeps all bytes.
+     */
+    @Test
+    public void growsUpToMaximumFrameSize() {
+        FrameAccumulator frame = new FrameAccumulator(4, 64);
+        for (int i = 0; i < 40; i++) {
+            assertTrue(frame.append((byte) i));
+        }
+        assertEquals(40, frame.length());
+        for (int i = 0; i < 40; i++) {
+            assertEquals((byte) i, frame.byteAt(i));
+        }
+        assertFalse(frame.isOverflowed());
+    }
+
+
+    /**
+     * Frames wrapping around the end of the ring buffer are read in the right order.
+     */
+    @Test
+    public void wrapsAround() {
+        FrameAccumulator frame = new FrameAccumulator(8, 8);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 5; i++) {
+                frame.append((byte) (round * 10 + i));
+            }
+            for (int i = 0; i < 5; i++) {
+                assertEquals((byte) (round * 10 + i), frame.byteAt(i));
+            }
+            frame.endFrame();
+        }
+    }
+
+
+    /**
+     * Bytes beyond the maximum frame size are discarded, the frame is counted once.
+     */
+    @Test
+    public void overflowIsCountedOncePerFrame() {
+        FrameAccumulator frame = new FrameAccumulator(4, 8);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(frame.append((byte) 'x'));
+        }
+        assertFalse(frame.append((byte) 'x'));
+        assertFalse(frame.append((byte) 'x'));
+        assertTrue(frame.isOverflowed());
+        assertEquals(8, frame.length());
+        assertEquals(1, frame.getOverflowCount());
+
+        frame.endFrame();                       // Resynchronized on the delimiter
+        assertFalse(frame.isOverflowed());
+        assertEquals(0, frame.length());
+        assertTrue(frame.append((byte) 'r'));
+        assertEquals((byte) 'r', frame.byteAt(0));
+        assertEquals(1, frame.getOverflowCount());
+    }
+
+
+    /**
+     * reset() discards a partial frame and an overflow.
+     */
+    @Test
+    public void resetDiscardsPartialFrame() {
+        FrameAccumulator frame = new FrameAccumulator(4, 4);
+        for (int i = 0; i < 6; i++) {
+            frame.append((byte) 'x');
+        }
+        frame.reset();
+        assertEquals(0, frame.length());
+        assertFalse(frame.isOverflowed());
+    }
+}
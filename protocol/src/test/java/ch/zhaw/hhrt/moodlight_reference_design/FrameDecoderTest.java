@@ -0,0 +1,170 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * Tests the FrameDecoder with text and binary frames, overflow and resynchronization.
+ */
+public class FrameDecoderTest {
+
+    /** Maximum frame size of the decoder under test */      private static final int MAX_FRAME_SIZE = 32;
+
+    /** Decoder under test */                                private FrameDecoder decoder;
+    /** Decoded frames as "id:value,value" */                private List<String> frames;
+    /** Last overflow count reported */                      private int overflows;
+    /** Last checksum error count reported */                private int checksumErrors;
+
+
+    @Before
+    public void setUp() {
+        frames = new ArrayList<>();
+        CommandTable commands = new CommandTable(
+                new String[]{"white", "red", "green", "blue", "idle", "color", "binary"});
+        decoder = new FrameDecoder((byte) '\r', commands, MAX_FRAME_SIZE,
+                new FrameDecoder.Listener() {
+                    public void onFrame(int commandId, int valueCount, int[] values) {
+                        frames.add(commandId + ":"
+                                + Arrays.toString(Arrays.copyOf(values, valueCount)));
+                    }
+
+                    public void onFrameOverflow(int overflowCount) {
+                        overflows = overflowCount;
+                    }
+
+                    public void onChecksumError(int errorCount) {
+                        checksumErrors = errorCount;
+                    }
+                });
+    }
+
+
+    /**
+     * Text frames are parsed into command ids and values, questions have no values.
+     */
+    @Test
+    public void decodesTextFrames() {
+        decode("red 123\rcolor 255 128 0 255\rBLUE ?\r");
+        assertEquals(Arrays.asList(
+                Command.RED + ":[123]",
+                Command.COLOR + ":[255, 128, 0, 255]",
+                Command.BLUE + ":[]"), frames);
+    }
+
+
+    /**
+     * A frame split into several chunks is decoded when its delimiter arrives.
+     */
+    @Test
+    public void decodesFrameSplitIntoChunks() {
+        decode("gre");
+        decode("en 4");
+        assertEquals(0, frames.size());
+        decode("2\r");
+        assertEquals(Arrays.asList(Command.GREEN + ":[42]"), frames);
+    }
+
+
+    /**
+     * An overlong frame is dropped, the next frame is decoded again.
+     */
+    @Test
+    public void dropsOverflowAndResynchronizes() {
+        decode("red 1\r");
+        decode("this frame is far too long for the decoder");
+        decode(" and goes on\rwhite 7\r");
+        assertEquals(1, overflows);
+        assertEquals(1, decoder.getOverflowCount());
+        assertEquals(Arrays.asList(Command.RED + ":[1]", Command.WHITE + ":[7]"), frames);
+    }
+
+
+    /**
+     * Unknown commands are reported as Command.UNKNOWN.
+     */
+    @Test
+    public void reportsUnknownCommand() {
+        decode("hello 5\r");
+        assertEquals(Arrays.asList(Command.UNKNOWN + ":[5]"), frames);
+    }
+
+
+    /**
+     * Binary frames are decoded like text frames and can be mixed with them.
+     */
+    @Test
+    public void decodesBinaryFrames() {
+        decoder.setBinary(true);
+        byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+        int length = BinaryFrames.encodeChannel(Command.BLUE, 200, frame);
+        decoder.decode(frame, 0, length);
+        decode("red 3\r");
+        length = BinaryFrames.encodeColor(new int[]{1, 2, 3, 4}, frame);
+        decoder.decode(frame, 0, length);
+        assertEquals(Arrays.asList(
+                Command.BLUE + ":[200]",
+                Command.RED + ":[3]",
+                Command.COLOR + ":[1, 2, 3, 4]"), frames);
+    }
+
+
+    /**
+     * A binary frame with a wrong checksum is dropped, the following frames are decoded.
+     */
+    @Test
+    public void dropsCorruptedBinaryFrame() {
+        decoder.setBinary(true);
+        byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+        int length = BinaryFrames.encodeChannel(Command.RED, 10, frame);
+        frame[2] ^= 0x01;
+        decoder.decode(frame, 0, length);
+        assertEquals(1, checksumErrors);
+        decode("green 5\r");
+        length = BinaryFrames.encodeChannel(Command.RED, 11, frame);
+        decoder.decode(frame, 0, length);
+        assertEquals(Arrays.asList(Command.GREEN + ":[5]", Command.RED + ":[11]"), frames);
+    }
+
+
+    /**
+     * Before binary frames were negotiated, a byte looking like an opcode is line noise
+     * and can not swallow the delimiter of the following text frame.
+     */
+    @Test
+    public void ignoresOpcodeBeforeNegotiation() {
+        byte[] noise = {(byte) BinaryFrames.COLOR};
+        decoder.decode(noise, 0, noise.length);
+        decode("\rred 4\r");
+        assertEquals(0, checksumErrors);
+        assertEquals(Command.RED + ":[4]", frames.get(frames.size() - 1));
+    }
+
+
+    /**
+     * reset() discards a partially received frame.
+     */
+    @Test
+    public void resetDiscardsPartialFrame() {
+        decode("red 12");
+        decoder.reset();
+        decode("blue 9\r");
+        assertEquals(Arrays.asList(Command.BLUE + ":[9]"), frames);
+    }
+
+
+    /**
+     * Feeds text to the decoder.
+     * @param text received characters
+     */
+    private void decode(String text) {
+        byte[] data = text.getBytes();
+        decoder.decode(data, 0, data.length);
+    }
+}
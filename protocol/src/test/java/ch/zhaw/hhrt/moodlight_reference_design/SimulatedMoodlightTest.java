@@ -0,0 +1,194 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the replies and the order of the state reports of the SimulatedMoodlight.
+ */
+public class SimulatedMoodlightTest {
+
+    /** Fast serial line, so the tests do not wait */        private static final int BAUD_RATE = 1000000;
+    /** Longest time to wait for the simulator in ms */      private static final long TIMEOUT_MS = 5000;
+
+    /** Moodlight under test */                              private SimulatedMoodlight moodlight;
+    /** Reported events, e.g. "OPEN", "opened", "red 5" */   private final List<String> events = new ArrayList<>();
+
+
+    @Before
+    public void setUp() {
+        CommandTable commands = new CommandTable(
+                new String[]{"white", "red", "green", "blue", "idle", "color", "binary"});
+        moodlight = new SimulatedMoodlight((byte) '\r', commands, BAUD_RATE, 0);
+        moodlight.setListener(new MoodlightTransport.Listener() {
+            public void onStateChanged(int state, int attempt, Exception cause) {
+                if (state == MoodlightTransport.OPEN) {
+                    addEvent("OPEN");
+                } else if (state == MoodlightTransport.CLOSED) {
+                    addEvent("CLOSED");
+                }
+            }
+
+            public void onOpened() {
+                addEvent("opened");
+            }
+
+            public void onOpenFailed() {
+                addEvent("failed");
+            }
+
+            public void onReceived(byte[] buffer, int offset, int length) {
+                addEvent(new String(buffer, offset, length - 1));
+            }
+        });
+    }
+
+
+    @After
+    public void tearDown() {
+        moodlight.close();
+    }
+
+
+    /**
+     * The link reports OPEN before onOpened(), and answers a question.
+     */
+    @Test
+    public void opensAndAnswers() throws Exception {
+        moodlight.setValue(Command.RED, 123);
+        moodlight.open();
+        awaitEvents(2);
+        assertEquals(MoodlightTransport.OPEN, moodlight.getState());
+        byte[] question = "red ?\r".getBytes();
+        moodlight.write(question, 0, question.length);
+        awaitEvents(3);
+        assertEquals("[OPEN, opened, red 123]", eventsToString());
+    }
+
+
+    /**
+     * Binary frames are only decoded after "binary ?" was answered with "binary 1".
+     */
+    @Test
+    public void decodesBinaryFramesOnlyAfterNegotiation() throws Exception {
+        moodlight.setBinarySupported(true);
+        moodlight.open();
+        awaitEvents(2);
+        byte[] frame = new byte[BinaryFrames.MAX_FRAME_SIZE];
+        int length = BinaryFrames.encodeChannel(Command.BLUE, 200, frame);
+        moodlight.write(frame, 0, length);
+        assertEquals(0, moodlight.getValue(Command.BLUE));
+        byte[] question = "\rbinary ?\r".getBytes();
+        moodlight.write(question, 0, question.length);
+        awaitEvents(3);
+        moodlight.write(frame, 0, length);
+        assertEquals(200, moodlight.getValue(Command.BLUE));
+        assertEquals("[OPEN, opened, binary 1]", eventsToString());
+    }
+
+
+    /**
+     * close() reports CLOSED last, nothing arrives after it.
+     */
+    @Test
+    public void reportsNothingAfterClose() throws Exception {
+        moodlight.setAcknowledge(true);
+        moodlight.open();
+        awaitEvents(2);
+        byte[] command = "green 5\r".getBytes();
+        moodlight.write(command, 0, command.length);
+        moodlight.close();
+        Thread.sleep(50);
+        List<String> reported = copyEvents();
+        assertEquals("CLOSED", reported.get(reported.size() - 1));
+        assertEquals(MoodlightTransport.CLOSED, moodlight.getState());
+    }
+
+
+    /**
+     * Every reopen() reports CLOSED strictly before the OPEN of the new simulator thread.
+     */
+    @Test
+    public void reopenKeepsOrder() throws Exception {
+        moodlight.open();
+        awaitEvents(2);
+        int cycles = 200;
+        for (int i = 0; i < cycles; i++) {
+            moodlight.reopen();
+            awaitEvents(2 + 3 * (i + 1));
+        }
+        moodlight.close();
+        List<String> reported = copyEvents();
+        String[] cycle = {"OPEN", "opened", "CLOSED"};
+        assertEquals(3 * (cycles + 1), reported.size());
+        for (int i = 0; i < reported.size(); i++) {
+            assertEquals("Event " + i + " of " + reported, cycle[i % 3], reported.get(i));
+        }
+    }
+
+
+    /**
+     * Closing before the simulator thread opened the link reports nothing.
+     */
+    @Test
+    public void closeWhileOpeningReportsNothing() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            moodlight.open();
+            moodlight.close();
+        }
+        Thread.sleep(50);
+        List<String> reported = copyEvents();
+        assertEquals(0, reported.size() % 3);
+        for (int i = 0; i < reported.size(); i++) {
+            assertEquals(new String[]{"OPEN", "opened", "CLOSED"}[i % 3], reported.get(i));
+        }
+    }
+
+
+    /**
+     * Records an event reported by the simulator.
+     * @param event to be recorded
+     */
+    private void addEvent(String event) {
+        synchronized (events) {
+            events.add(event);
+            events.notifyAll();
+        }
+    }
+
+
+    /**
+     * Waits until a number of events was reported.
+     * @param count number of events to wait for
+     * @throws InterruptedException if the test was interrupted
+     */
+    private void awaitEvents(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        synchronized (events) {
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                events.wait(TIMEOUT_MS);
+            }
+            assertTrue("Only " + events, events.size() >= count);
+        }
+    }
+
+
+    private List<String> copyEvents() {
+        synchronized (events) {
+            return new ArrayList<>(events);
+        }
+    }
+
+
+    private String eventsToString() {
+        return copyEvents().toString();
+    }
+}
@@ -0,0 +1,111 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the correlation, expiry and give-up of the SyncRequests.
+ */
+public class SyncRequestsTest {
+
+    /** Timeout of the questions in ms */                    private static final int TIMEOUT_MS = 500;
+    /** Timeout of the questions in nanoseconds */           private static final long TIMEOUT = TIMEOUT_MS * 1000000L;
+    /** All channels as bit mask */                          private static final int ALL = (1 << Command.CHANNEL_COUNT) - 1;
+
+    /** Tracker under test */                                private SyncRequests requests;
+    /** Number of finished synchronizations */               private int finished;
+    /** Missing channels of the last synchronization */      private int missing;
+
+
+    @Before
+    public void setUp() {
+        requests = new SyncRequests(TIMEOUT_MS, 3, new SyncRequests.Listener() {
+            public void onSyncFinished(int missingChannels, long elapsedNanos) {
+                finished++;
+                missing = missingChannels;
+            }
+        });
+    }
+
+
+    /**
+     * The synchronization finishes when every channel replied.
+     */
+    @Test
+    public void finishesWhenAllChannelsReplied() {
+        requests.begin(ALL, 0);
+        for (int channel = 0; channel < Command.CHANNEL_COUNT; channel++) {
+            assertTrue(requests.isPending());
+            assertTrue(requests.onReply(channel, 1000));
+        }
+        assertFalse(requests.isPending());
+        assertEquals(1, finished);
+        assertEquals(0, missing);
+    }
+
+
+    /**
+     * A value which was not asked for is not correlated.
+     */
+    @Test
+    public void ignoresReplyNotAskedFor() {
+        requests.begin(1 << Command.RED, 0);
+        assertFalse(requests.onReply(Command.BLUE, 1000));
+        assertTrue(requests.onReply(Command.RED, 1000));
+        assertFalse(requests.onReply(Command.RED, 2000));   // Answered already
+        assertEquals(1, finished);
+    }
+
+
+    /**
+     * Questions are only asked again after their timeout.
+     */
+    @Test
+    public void expiresOnlyAfterTimeout() {
+        requests.begin(ALL, 0);
+        requests.onReply(Command.RED, 1000);
+        assertEquals(0, requests.expire(TIMEOUT - 1));
+        assertEquals(ALL & ~(1 << Command.RED), requests.expire(TIMEOUT));
+        assertEquals(0, requests.expire(TIMEOUT + 1));     // New deadline
+        assertTrue(requests.isPending());
+    }
+
+
+    /**
+     * A question asked the maximum number of times is given up and reported as missing.
+     */
+    @Test
+    public void givesUpAfterMaximumAttempts() {
+        requests.begin(ALL, 0);
+        for (int channel = 1; channel < Command.CHANNEL_COUNT; channel++) {
+            requests.onReply(channel, 1000);
+        }
+        long now = 0;
+        assertEquals(1, requests.expire(now += TIMEOUT));  // Second attempt
+        assertEquals(1, requests.expire(now += TIMEOUT));  // Third attempt
+        assertEquals(0, finished);
+        assertEquals(0, requests.expire(now + TIMEOUT));   // Given up
+        assertFalse(requests.isPending());
+        assertEquals(1, finished);
+        assertEquals(1, missing);
+    }
+
+
+    /**
+     * A new synchronization replaces the running one.
+     */
+    @Test
+    public void beginReplacesRunningSynchronization() {
+        requests.begin(ALL, 0);
+        requests.begin(1 << Command.GREEN, TIMEOUT);
+        assertEquals(0, requests.expire(TIMEOUT + 1));
+        assertFalse(requests.onReply(Command.RED, TIMEOUT + 2));
+        assertTrue(requests.onReply(Command.GREEN, TIMEOUT + 3));
+        assertEquals(1, finished);
+    }
+}
@@ -0,0 +1,221 @@
+package ch.zhaw.hhrt.moodlight_reference_design;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Tests the pacing, coalescing, dropping and fairness of the TransmitQueue.
+ */
+public class TransmitQueueTest {
+
+    /** Pause between two frames in ms */                    private static final int INTERVAL_MS = 20;
+    /** Longest time to wait for the writer thread in ms */  private static final long TIMEOUT_MS = 5000;
+
+    /** Queue under test */                                  private TransmitQueue queue;
+    /** Records the written frames */                        private RecordingTransport transport;
+
+
+    /**
+     * Link which records the frames written to it and the time of each write.
+     */
+    private static class RecordingTransport implements MoodlightTransport {
+
+        /** Written frames without the delimiter */          private final List<String> frames = new ArrayList<>();
+        /** Time of each write from System.nanoTime() */     private final List<Long> times = new ArrayList<>();
+
+        public void setListener(Listener listener) {
+        }
+
+        public int getState() {
+            return OPEN;
+        }
+
+        public void open() {
+        }
+
+        public void close() {
+        }
+
+        public void reopen() {
+        }
+
+        public synchronized void write(byte[] buffer, int offset, int length) {
+            times.add(System.nanoTime());
+            frames.add(new String(buffer, offset, length - 1));
+            notifyAll();
+        }
+
+        /**
+         * Waits until a number of frames was written.
+         * @param count number of frames to wait for
+         * @return the frames written so far
+         * @throws InterruptedException if the test was interrupted
+         */
+        synchronized List<String> awaitFrames(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (frames.size() < count && System.currentTimeMillis() < deadline) {
+                wait(TIMEOUT_MS);
+            }
+            return new ArrayList<>(frames);
+        }
+
+        synchronized List<Long> getTimes() {
+            return new ArrayList<>(times);
+        }
+    }
+
+
+    @Before
+    public void setUp() {
+        queue = new TransmitQueue(2, INTERVAL_MS, (byte) '\r',
+                new String[]{"white", "red", "green", "blue"}, "color");
+        transport = new RecordingTransport();
+    }
+
+
+    @After
+    public void tearDown() {
+        queue.stop();
+    }
+
+
+    /**
+     * Subsequent frames start at least one frame interval apart.
+     * <br>The times are taken inside write(), so a small tolerance is allowed.
+     */
+    @Test
+    public void pacesFrames() throws InterruptedException {
+        queue.start();
+        queue.setTransport(transport);
+        for (int i = 0; i < 4; i++) {
+            queue.sendChannel(Command.RED, i);
+            transport.awaitFrames(i + 1);
+        }
+        List<Long> times = transport.getTimes();
+        assertEquals(4, times.size());
+        for (int i = 1; i < times.size(); i++) {
+            assertTrue("Frames " + (i - 1) + " and " + i + " too close",
+                    times.get(i) - times.get(i - 1) >= (INTERVAL_MS - 1) * 1000000L);
+        }
+    }
+
+
+    /**
+     * Values of a channel not yet sent are overwritten, only the latest one is sent.
+     */
+    @Test
+    public void coalescesChannelValues() throws InterruptedException {
+        for (int value = 0; value < 10; value++) {
+            queue.sendChannel(Command.GREEN, value);
+        }
+        queue.sendChannel(Command.BLUE, 7);
+        assertEquals(9, queue.getCoalescedValues());
+        queue.start();
+        queue.setTransport(transport);
+        assertEquals(Arrays.asList("green 9", "blue 7"), transport.awaitFrames(2));
+    }
+
+
+    /**
+     * A color replaces the pending values of the single channels.
+     */
+    @Test
+    public void colorReplacesChannelValues() throws InterruptedException {
+        queue.sendChannel(Command.RED, 1);
+        queue.sendColor(10, 20, 30, 40);
+        assertEquals(1, queue.getCoalescedValues());
+        queue.start();
+        queue.setTransport(transport);
+        assertEquals(Arrays.asList("color 10 20 30 40"), transport.awaitFrames(1));
+    }
+
+
+    /**
+     * The frame interval runs from start to start, a slow write does not add to it.
+     */
+    @Test
+    public void intervalIncludesWriteTime() throws InterruptedException {
+        RecordingTransport slow = new RecordingTransport() {
+            @Override
+            public synchronized void write(byte[] buffer, int offset, int length) {
+                super.write(buffer, offset, length);
+                try {
+                    Thread.sleep(INTERVAL_MS);  // Link as slow as the frame interval
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        queue.stop();
+        queue = new TransmitQueue(16, INTERVAL_MS, (byte) '\r', new String[0], "color");
+        for (int i = 0; i < 10; i++) {
+            queue.send("idle");
+        }
+        queue.start();
+        queue.setTransport(slow);
+        slow.awaitFrames(10);
+        List<Long> times = slow.getTimes();
+        long period = (times.get(9) - times.get(0)) / 9;
+        // A pause after each write would double the period
+        assertTrue("Period " + period + " ns", period < INTERVAL_MS * 1500000L);
+    }
+
+
+    /**
+     * When the queue is full, the oldest command is dropped.
+     */
+    @Test
+    public void dropsOldestCommand() throws InterruptedException {
+        assertTrue(queue.send("red ?"));
+        assertTrue(queue.send("green ?"));
+        assertEquals(false, queue.send("blue ?"));
+        assertEquals(1, queue.getDroppedFrames());
+        queue.start();
+        queue.setTransport(transport);
+        assertEquals(Arrays.asList("green ?", "blue ?"), transport.awaitFrames(2));
+    }
+
+
+    /**
+     * Queued commands take turns with the pending channel values.
+     */
+    @Test
+    public void commandsTakeTurnsWithSlots() throws InterruptedException {
+        queue.sendChannel(Command.RED, 1);
+        queue.sendChannel(Command.GREEN, 2);
+        queue.send("idle");
+        queue.start();
+        queue.setTransport(transport);
+        assertEquals(Arrays.asList("red 1", "idle", "green 2"), transport.awaitFrames(3));
+    }
+
+
+    /**
+     * An animation is asked for its values each time the link is ready, until it is finished.
+     */
+    @Test
+    public void runsAnimationUntilFinished() throws InterruptedException {
+        queue.setAnimation(new TransmitQueue.Animation() {
+            private int step;
+
+            public boolean onFrameReady(TransmitQueue q, long now) {
+                q.sendChannel(Command.WHITE, step++);
+                return step < 3;
+            }
+        });
+        queue.start();
+        queue.setTransport(transport);
+        assertEquals(Arrays.asList("white 0", "white 1", "white 2"), transport.awaitFrames(3));
+        Thread.sleep(4 * INTERVAL_MS);
+        assertEquals(3, transport.awaitFrames(0).size());
+    }
+}